@@ -27,7 +27,6 @@ import androidx.work.Data;
 import androidx.work.WorkInfo;
 
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
@@ -43,11 +42,21 @@ public class BlurActivity extends AppCompatActivity implements View.OnClickListe
 
     private static final String TAG = "BLUR_ACTIVITY";
 
+    private static final String KEY_OBSERVING_WORK = "KEY_OBSERVING_WORK";
+
     private BlurViewModel mViewModel;
     private ImageView mImageView;
     private ProgressBar mProgressBar;
     private Button mGoButton, mOutputButton, mCancelButton;
 
+    // Latest state of this image's chain and of the batch, kept apart because both drive the
+    // same progress bar and buttons
+    private boolean mBlurRunning;
+    private boolean mSaveRunning;
+    private int mBlurProgress;
+    private boolean mBatchRunning;
+    private int mBatchProgress;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -67,10 +76,31 @@ public class BlurActivity extends AppCompatActivity implements View.OnClickListe
         Intent intent = getIntent();
         String imageUriExtra = intent.getStringExtra(Constants.KEY_IMAGE_URI);
         mViewModel.setImageUri(imageUriExtra);
-        if (mViewModel.getImageUri() != null) {
+        mViewModel.setImageUris(intent.getStringArrayExtra(Constants.KEY_IMAGE_URIS));
+
+        // A chain this screen started may have outlived the process; follow it again. Its
+        // unique name comes from the image, so this has to wait until the image is known.
+        if (savedInstanceState != null
+                && savedInstanceState.getBoolean(KEY_OBSERVING_WORK, false)) {
+            mViewModel.observeWork();
+        }
+
+        // A preview kept across recreation wins over the unblurred image
+        if (mViewModel.getImageUri() != null && mViewModel.getPreview().getValue() == null) {
             Glide.with(this).load(mViewModel.getImageUri()).into(mImageView);
         }
 
+        // Show what the chosen level looks like straight away, on a screen-sized copy
+        mViewModel.getPreview().observe(this, preview -> {
+            if (preview != null) {
+                Glide.with(this).clear(mImageView);
+                mImageView.setImageBitmap(preview);
+            }
+        });
+        RadioGroup radioGroup = findViewById(R.id.radio_blur_group);
+        radioGroup.setOnCheckedChangeListener(
+                (group, checkedId) -> mViewModel.showPreview(getBlurRadius()));
+
         // Setup blur image file button
 //        mGoButton.setOnClickListener(view -> mViewModel.applyBlur(getBlurLevel()));
         mGoButton.setOnClickListener(this);
@@ -78,70 +108,84 @@ public class BlurActivity extends AppCompatActivity implements View.OnClickListe
         mCancelButton.setOnClickListener(this);
 
         //Show work status while saving image to gallery
-        mViewModel.getSavedWorkInfo().observe(this, listOfWorkInfos -> {
+        mViewModel.getSavedWorkInfo().observe(this, workInfo -> {
 
-            //If there are no matching work info, do nothing
-            if (listOfWorkInfos == null || listOfWorkInfos.isEmpty()) {
+            //If the current chain has no save step yet, do nothing
+            if (workInfo == null) {
                 return;
             }
 
-            if(listOfWorkInfos.size() > 0) {
-                //We only care about the first output status
-                //Every continuation has only worker tagged TAG_OUTPUT
-                WorkInfo workInfo = listOfWorkInfos.get(0);
+            mSaveRunning = !workInfo.getState().isFinished();
+            showWorkState();
 
-                boolean finished = workInfo.getState().isFinished();
-                if (!finished) {
-                    showWorkInProgress();
-                }
-                else {
-                    showWorkFinished();
-                }
-
-                Data outputData = workInfo.getOutputData();
+            Data outputData = workInfo.getOutputData();
 
-                String outputImageUri = outputData.getString(Constants.KEY_IMAGE_URI);
-
-                //if there is an output file show "See File" button
-                if (!TextUtils.isEmpty(outputImageUri)) {
-                    mViewModel.setOutputUri(outputImageUri);
-                    mOutputButton.setVisibility(View.VISIBLE);
-                }
+            String outputImageUri = outputData.getString(Constants.KEY_IMAGE_URI);
 
+            //if there is an output file show "See File" button
+            if (!TextUtils.isEmpty(outputImageUri)) {
+                mViewModel.setOutputUri(outputImageUri);
+                mOutputButton.setVisibility(View.VISIBLE);
             }
 
         });
 
       //Show work status while blurring image
-      mViewModel.getBlurWorkInfo().observe(this, listOfWorkInfos -> {
-          //If there are no matching work info, do nothing
-          if (listOfWorkInfos == null || listOfWorkInfos.isEmpty()) {
+      mViewModel.getBlurWorkInfo().observe(this, workInfo -> {
+          //If the current chain has no blur step yet, do nothing
+          if (workInfo == null) {
               return;
           }
 
-          if(listOfWorkInfos.size() > 0) {
-              //We only care about the first output status
-              //Every continuation has only worker tagged TAG_OUTPUT
-              WorkInfo workInfo = listOfWorkInfos.get(0);
+          mBlurRunning = !workInfo.getState().isFinished();
+          mBlurProgress = workInfo.getProgress().getInt(Constants.KEY_PROGRESS, 0);
+          showWorkState();
 
-              Log.w(TAG, "blur work info list" + listOfWorkInfos);
-              Log.w(TAG, "blur work info " + workInfo);
+      });
+
+        //Show aggregate progress of a batch as the share of images already saved
+        mViewModel.getBatchWorkInfo().observe(this, listOfWorkInfos -> {
+            if (listOfWorkInfos == null || listOfWorkInfos.isEmpty()) {
+                return;
+            }
 
-              int progress = workInfo.getProgress().getInt("blurProgress", 0);
+            int saved = 0;
+            int total = 0;
+            boolean finished = true;
+            for (WorkInfo workInfo : listOfWorkInfos) {
+                finished &= workInfo.getState().isFinished();
+                if (workInfo.getTags().contains(Constants.TAG_BATCH_OUTPUT)) {
+                    total++;
+                    if (workInfo.getState() == WorkInfo.State.SUCCEEDED) {
+                        saved++;
+                    }
+                }
+            }
 
-              Log.w(TAG, "progress " + progress);
+            mBatchRunning = !finished;
+            mBatchProgress = total > 0 ? saved * 100 / total : 0;
+            showWorkState();
+        });
+    }
 
-              boolean finished = workInfo.getState().isFinished();
-              if (!finished) {
-                  showWorkInProgress();
-                  mProgressBar.setProgress(progress);
-              }
-              else {
-                  showWorkFinished();
-              }
-          }
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(KEY_OBSERVING_WORK, mViewModel.isObservingWork());
+    }
 
-      });
+    /**
+     * Shows the combined state of the single-image chain and the batch. Each observer only
+     * updates its own fields, so neither one's update hides the other's work.
+     */
+    private void showWorkState() {
+        boolean singleRunning = mBlurRunning || mSaveRunning;
+        if (singleRunning || mBatchRunning) {
+            showWorkInProgress();
+            mProgressBar.setProgress(singleRunning ? mBlurProgress : mBatchProgress);
+        } else {
+            showWorkFinished();
+        }
     }
 
     /**
@@ -182,11 +226,32 @@ public class BlurActivity extends AppCompatActivity implements View.OnClickListe
         return 1;
     }
 
+    /**
+     * Get the blur radius for the level chosen with the radio buttons. Each level is a single
+     * blur, however strong.
+     * @return Blur radius in pixels of the original image
+     */
+    private float getBlurRadius() {
+        switch (getBlurLevel()) {
+            case 2:
+                return 25f;
+            case 3:
+                return 50f;
+            default:
+                return 10f;
+        }
+    }
+
     @Override
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.go_button:
-                mViewModel.applyBlur(getBlurLevel());
+                if (mViewModel.isBatch()) {
+                    mViewModel.applyBlurBatch(getBlurRadius(),
+                            BlurViewModel.DEFAULT_BATCH_CONCURRENCY);
+                } else {
+                    mViewModel.applyBlurRadius(getBlurRadius());
+                }
                 break;
             case R.id.see_file_button:
                 Uri currentUri = mViewModel.getOutputUri();
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.annotation.NonNull;
+import androidx.work.Configuration;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Application that configures WorkManager on demand.
+ *
+ * The default WorkManager initializer is removed from the manifest, so WorkManager, its database
+ * and its schedulers are only set up the first time something calls WorkManager.getInstance,
+ * not on every process start. Picking an image never touches WorkManager at all.
+ */
+public class BlurApplication extends Application implements Configuration.Provider {
+
+    private static final String TAG = BlurApplication.class.getSimpleName();
+
+    // Every worker runs its steps on its own executors and only starts on WorkManager's, so a
+    // couple of threads are plenty
+    private static final int WORK_MANAGER_THREADS = 2;
+
+    private static long sStartUptimeMillis;
+    private static boolean sFirstFrameReported;
+
+    @Override
+    public void onCreate() {
+        sStartUptimeMillis = SystemClock.uptimeMillis();
+        super.onCreate();
+    }
+
+    @NonNull
+    @Override
+    public Configuration getWorkManagerConfiguration() {
+        return new Configuration.Builder()
+                .setExecutor(Executors.newFixedThreadPool(WORK_MANAGER_THREADS))
+                .setMinimumLoggingLevel(BuildConfig.DEBUG ? Log.INFO : Log.ERROR)
+                .build();
+    }
+
+    /**
+     * Logs the time from process start to the first frame of {@code activity}, once per process,
+     * and reports the activity as fully drawn so the platform records it too
+     */
+    static void reportFirstFrame(@NonNull final Activity activity) {
+        final View content = activity.findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        content.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // Runs once the frame being prepared has been drawn
+                        content.post(() -> {
+                            if (sFirstFrameReported) {
+                                return;
+                            }
+                            sFirstFrameReported = true;
+                            Log.i(TAG, String.format("Cold start to first frame of %s: %d ms",
+                                    activity.getClass().getSimpleName(),
+                                    SystemClock.uptimeMillis() - sStartUptimeMillis));
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                                activity.reportFullyDrawn();
+                            }
+                        });
+                        return true;
+                    }
+                });
+    }
+}
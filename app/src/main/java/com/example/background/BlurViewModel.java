@@ -17,10 +17,14 @@
 package com.example.background;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 import androidx.work.Constraints;
 import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
@@ -29,39 +33,110 @@ import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 
 import android.app.Application;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 
+import com.example.background.workers.BlurPreview;
 import com.example.background.workers.BlurWorker;
 import com.example.background.workers.CleanupWorker;
+import com.example.background.workers.FolderScanWorker;
+import com.example.background.workers.PruneWorker;
 import com.example.background.workers.SaveImageToFileWorker;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import static com.example.background.Constants.BATCH_MANIPULATION_WORK_NAME;
 import static com.example.background.Constants.BLUR_OUTPUT;
+import static com.example.background.Constants.FOLDER_SCAN_INTERVAL_HOURS;
+import static com.example.background.Constants.FOLDER_SCAN_WORK_NAME;
 import static com.example.background.Constants.IMAGE_MANIPULATION_WORK_NAME;
+import static com.example.background.Constants.KEY_BATCH_CONCURRENCY;
+import static com.example.background.Constants.KEY_BLUR_LEVEL;
+import static com.example.background.Constants.KEY_BLUR_RADIUS;
 import static com.example.background.Constants.KEY_IMAGE_URI;
+import static com.example.background.Constants.KEY_INTERMEDIATE_OUTPUT;
+import static com.example.background.Constants.KEY_WATCH_BUCKET_ID;
+import static com.example.background.Constants.KEY_WATCH_DIRECTORY;
+import static com.example.background.Constants.PRUNE_INTERVAL_HOURS;
+import static com.example.background.Constants.PRUNE_WORK_NAME;
+import static com.example.background.Constants.TAG_BATCH_OUTPUT;
+import static com.example.background.Constants.TAG_CHAIN_PREFIX;
 import static com.example.background.Constants.TAG_OUTPUT;
 
 public class BlurViewModel extends AndroidViewModel {
 
+    // Batch images are blurred side by side, one per core unless told otherwise
+    static final int DEFAULT_BATCH_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
     private Uri mImageUri;
 
+    private List<Uri> mImageUris = new ArrayList<>();
+
+    // Created on first use, which is what initializes WorkManager in this process
     private WorkManager mWorkManager;
 
+    // Set once this screen has a chain to follow; nothing is queried from WorkManager before
+    private final MutableLiveData<Boolean> mWorkStarted = new MutableLiveData<>();
+
     private Uri mOutputUri;
 
+    // Every step of this image's current chain, and nothing from earlier chains
+    private LiveData<List<WorkInfo>> mChainWorkInfo;
+
     //new instance variable for the WorkInfo
-    private LiveData<List<WorkInfo>> mSavedWorkInfo;
+    private LiveData<WorkInfo> mSavedWorkInfo;
 
-    private LiveData<List<WorkInfo>> mBlurWorkInfo;
+    private LiveData<WorkInfo> mBlurWorkInfo;
+
+    private LiveData<List<WorkInfo>> mBatchWorkInfo;
+
+    // Blurs a screen-sized copy of mImageUri for the live preview; created on first use
+    private BlurPreview mPreview;
+
+    private final MutableLiveData<Bitmap> mPreviewBitmap = new MutableLiveData<>();
 
     public BlurViewModel(@NonNull Application application) {
         super(application);
-        mWorkManager = WorkManager.getInstance(application);
-        mSavedWorkInfo = mWorkManager.getWorkInfosByTagLiveData(TAG_OUTPUT);
-        mBlurWorkInfo = mWorkManager.getWorkInfosByTagLiveData(BLUR_OUTPUT);
+        //Query by the chain's unique name rather than by tag, so the results stay the size of
+        //one chain however many images were blurred before
+        mChainWorkInfo = Transformations.switchMap(mWorkStarted,
+                started -> getWorkManager().getWorkInfosForUniqueWorkLiveData(chainName()));
+        mSavedWorkInfo = Transformations.map(mChainWorkInfo,
+                workInfos -> firstWithTag(workInfos, TAG_OUTPUT));
+        mBlurWorkInfo = Transformations.map(mChainWorkInfo,
+                workInfos -> currentBlur(workInfos));
+        mBatchWorkInfo = Transformations.switchMap(mWorkStarted,
+                started -> getWorkManager().getWorkInfosForUniqueWorkLiveData(
+                        BATCH_MANIPULATION_WORK_NAME));
+    }
+
+    private WorkManager getWorkManager() {
+        if (mWorkManager == null) {
+            mWorkManager = WorkManager.getInstance(getApplication());
+        }
+        return mWorkManager;
+    }
+
+    /**
+     * Starts the work info queries behind {@link #getSavedWorkInfo()},
+     * {@link #getBlurWorkInfo()} and {@link #getBatchWorkInfo()}. Called when a chain is
+     * enqueued, or when the screen is recreated while one may still be running.
+     */
+    void observeWork() {
+        if (mWorkStarted.getValue() == null) {
+            mWorkStarted.setValue(true);
+        }
+    }
+
+    boolean isObservingWork() {
+        return mWorkStarted.getValue() != null;
     }
 
     /**
@@ -69,15 +144,93 @@ public class BlurViewModel extends AndroidViewModel {
      * @param blurLevel The amount to blur the image
      */
     void applyBlur(int blurLevel) {
+        applyBlur(blurLevel, true);
+    }
+
+    /**
+     * Create the WorkRequest to apply the blur and save the resulting image
+     * @param blurLevel The amount to blur the image
+     * @param fused True to run a single BlurWorker with an equivalent larger radius, false to
+     *              chain one BlurWorker per level
+     */
+    void applyBlur(int blurLevel, boolean fused) {
+        String chainTag = newChainTag();
+        List<OneTimeWorkRequest> blurRequests = new ArrayList<>();
+        if (fused) {
+            //One decode, one blur and one encode regardless of the level
+            blurRequests.add(new OneTimeWorkRequest.Builder(BlurWorker.class)
+                    .addTag(BLUR_OUTPUT)
+                    .addTag(IMAGE_MANIPULATION_WORK_NAME)
+                    .addTag(chainTag)
+                    .setInputData(createInputDataForUri(blurLevel))
+                    .build());
+        } else {
+            //Add WorkRequests to blur the image the number of times requested
+            for (int i=0 ; i < blurLevel ; i++) {
+                OneTimeWorkRequest.Builder blurBuilder = new OneTimeWorkRequest.Builder(BlurWorker.class)
+                        .addTag(BLUR_OUTPUT)
+                        .addTag(IMAGE_MANIPULATION_WORK_NAME)
+                        .addTag(chainTag);
+
+                //Input the Uri if this is the first blur operation
+                //After the first blur operation the input will be the output of previous
+                //blur operations
+                Data.Builder blurInput = new Data.Builder();
+                if ( i == 0 ) {
+                    blurInput.putAll(createInputDataForUri(1));
+                }
+
+                //Every blur but the last hands off raw pixels instead of a PNG
+                blurInput.putBoolean(KEY_INTERMEDIATE_OUTPUT, i < blurLevel - 1);
+                blurBuilder.setInputData(blurInput.build());
+
+                blurRequests.add(blurBuilder.build());
+            }
+        }
+        enqueueBlurAndSave(chainTag, blurRequests);
+    }
+
+    /**
+     * Create the WorkRequest to blur the image by {@code radius} source pixels in a single pass
+     * and save the resulting image. Large radii cost no more per pixel than small ones.
+     * @param radius Blur radius in pixels of the original image
+     */
+    void applyBlurRadius(float radius) {
+        Data blurInput = new Data.Builder()
+                .putAll(createInputDataForUri(1))
+                .putFloat(KEY_BLUR_RADIUS, radius)
+                .build();
+        String chainTag = newChainTag();
+        OneTimeWorkRequest blurRequest = new OneTimeWorkRequest.Builder(BlurWorker.class)
+                .addTag(BLUR_OUTPUT)
+                .addTag(IMAGE_MANIPULATION_WORK_NAME)
+                .addTag(chainTag)
+                .setInputData(blurInput)
+                .build();
+        enqueueBlurAndSave(chainTag, Collections.singletonList(blurRequest));
+    }
+
+    /**
+     * Runs a cleanup, then {@code blurRequests} one after another, then a save of the last
+     * blur's output. The cleanup and the save are tagged {@code chainTag} like the blurs.
+     *
+     * Each image gets a chain of its own, so blurring a second image leaves the first one's
+     * chain running; the blurs of all chains share memory through the workers' admission
+     * control instead.
+     */
+    private void enqueueBlurAndSave(String chainTag, List<OneTimeWorkRequest> blurRequests) {
 //        mWorkManager.enqueue(OneTimeWorkRequest.from(BlurWorker.class));
         //Add WorkRequest to Cleanup temp images
-        WorkContinuation continuation = mWorkManager.beginUniqueWork(
-                IMAGE_MANIPULATION_WORK_NAME,
-                //use REPLACE because if the user decides to blur another image before the current one
-                //is finished, the app will need to stop the current one and start blurring the new image
-                //so that the app will now only ever blur one picture at a time
+        schedulePruning();
+        WorkContinuation continuation = getWorkManager().beginUniqueWork(
+                chainName(),
+                //use REPLACE because if the user blurs the same image again before the current
+                //blur of it is finished, only the newer blur is worth finishing
                 ExistingWorkPolicy.REPLACE,
-                OneTimeWorkRequest.from(CleanupWorker.class)
+                new OneTimeWorkRequest.Builder(CleanupWorker.class)
+                        .addTag(IMAGE_MANIPULATION_WORK_NAME)
+                        .addTag(chainTag)
+                        .build()
         );
 
         //Create charging constraint
@@ -85,19 +238,8 @@ public class BlurViewModel extends AndroidViewModel {
                 .setRequiresCharging(true)
                 .build();
 
-        //Add WorkRequests to blur the image the number of times requested
-        for (int i=0 ; i < blurLevel ; i++) {
-            OneTimeWorkRequest.Builder blurBuilder = new OneTimeWorkRequest.Builder(BlurWorker.class)
-                    .addTag(BLUR_OUTPUT);
-
-            //Input the Uri if this is the first blur operation
-            //After the first blur operation the input will be the output of previous
-            //blur operations
-            if ( i == 0 ) {
-                blurBuilder.setInputData(createInputDataForUri());
-            }
-
-            continuation = continuation.then(blurBuilder.build());
+        for (OneTimeWorkRequest blurRequest : blurRequests) {
+            continuation = continuation.then(blurRequest);
         }
 
         Data.Builder builder = new Data.Builder();
@@ -107,12 +249,147 @@ public class BlurViewModel extends AndroidViewModel {
                 .setConstraints(constraints)//This adds the constraint which requires the users to charge the devices while saving image
                 .setInputData(builder.build())//This adds the input data to worker class;
                 .addTag(TAG_OUTPUT) //This adds the tag
+                .addTag(IMAGE_MANIPULATION_WORK_NAME)
+                .addTag(chainTag)
                 .build();
 
         continuation = continuation.then(saveImageRequest);
 
         //Actually start the work
         continuation.enqueue();
+        observeWork();
+    }
+
+    /**
+     * Create the WorkRequests to blur and save every selected image. Each image is a blur and a
+     * save in a lane of its own, so an image that fails only fails its own lane; WorkManager
+     * fails every later step of a chain, which would take the rest of a shared lane with it. A
+     * single cleanup runs before any lane starts.
+     *
+     * At most {@code concurrency} of the batch's blurs run at once; each also waits for
+     * MemoryBudget to admit it, so fewer run when memory is short.
+     * @param radius Blur radius in pixels of each original image
+     * @param concurrency Maximum number of images blurred at the same time
+     */
+    void applyBlurBatch(float radius, int concurrency) {
+        if (mImageUris.isEmpty()) {
+            return;
+        }
+        //Every lane's temporary files stay until the whole batch is over
+        String chainTag = newChainTag();
+
+        schedulePruning();
+        WorkContinuation cleanup = getWorkManager().beginUniqueWork(
+                BATCH_MANIPULATION_WORK_NAME,
+                ExistingWorkPolicy.REPLACE,
+                new OneTimeWorkRequest.Builder(CleanupWorker.class).addTag(chainTag).build()
+        );
+
+        //Create charging constraint
+        Constraints constraints = new Constraints.Builder()
+                .setRequiresCharging(true)
+                .build();
+
+        List<WorkContinuation> lanes = new ArrayList<>(mImageUris.size());
+        for (Uri imageUri : mImageUris) {
+            Data blurInput = new Data.Builder()
+                    .putString(KEY_IMAGE_URI, imageUri.toString())
+                    .putFloat(KEY_BLUR_RADIUS, radius)
+                    .putInt(KEY_BATCH_CONCURRENCY, concurrency)
+                    .build();
+            OneTimeWorkRequest blurRequest = new OneTimeWorkRequest.Builder(BlurWorker.class)
+                    .addTag(chainTag)
+                    .setInputData(blurInput)
+                    .build();
+            OneTimeWorkRequest saveRequest = new OneTimeWorkRequest.Builder(SaveImageToFileWorker.class)
+                    .setConstraints(constraints)
+                    .addTag(TAG_BATCH_OUTPUT)
+                    .addTag(chainTag)
+                    .build();
+
+            lanes.add(cleanup.then(blurRequest).then(saveRequest));
+        }
+
+        //Enqueuing the combination enqueues every lane, and the shared cleanup only once
+        if (lanes.size() == 1) {
+            lanes.get(0).enqueue();
+        } else {
+            WorkContinuation.combine(lanes).enqueue();
+        }
+        observeWork();
+    }
+
+    /**
+     * Unique work name of the chain for the current image. Each image has its own, so blurring
+     * one image again replaces only that image's chain.
+     */
+    private String chainName() {
+        return IMAGE_MANIPULATION_WORK_NAME + ":" + mImageUri;
+    }
+
+    /**
+     * Makes sure finished work is regularly pruned from WorkManager's database. Every chain
+     * leaves its steps behind once it finishes, and tag queries elsewhere, such as cleanup's,
+     * would otherwise grow with every image ever blurred.
+     */
+    private void schedulePruning() {
+        //Pruning is as deferrable as folder scans, so it waits for the same conditions
+        PeriodicWorkRequest pruneRequest = new PeriodicWorkRequest.Builder(PruneWorker.class,
+                PRUNE_INTERVAL_HOURS, TimeUnit.HOURS)
+                .setConstraints(FolderScanWorker.constraints())
+                .build();
+        getWorkManager().enqueueUniquePeriodicWork(
+                PRUNE_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, pruneRequest);
+    }
+
+    /**
+     * Starts blurring, in the background, every image that is added to or changed in the
+     * MediaStore bucket {@code bucketId}, replacing any folder watched before. Images already
+     * in the bucket are blurred too, a batch at a time.
+     * @param radius Blur radius in pixels of each original image
+     */
+    void watchFolder(String bucketId, float radius) {
+        watch(new Data.Builder()
+                .putString(KEY_WATCH_BUCKET_ID, bucketId)
+                .putFloat(KEY_BLUR_RADIUS, radius)
+                .build());
+    }
+
+    /**
+     * Like {@link #watchFolder(String, float)}, for the images under a directory
+     * @param directory Absolute path of the directory
+     */
+    void watchDirectory(String directory, float radius) {
+        watch(new Data.Builder()
+                .putString(KEY_WATCH_DIRECTORY, directory)
+                .putFloat(KEY_BLUR_RADIUS, radius)
+                .build());
+    }
+
+    /**
+     * Stops scanning the watched folder. Blurs already enqueued still run.
+     */
+    void stopWatching() {
+        getWorkManager().cancelUniqueWork(FOLDER_SCAN_WORK_NAME);
+    }
+
+    private void watch(Data scanInput) {
+        schedulePruning();
+        PeriodicWorkRequest scanRequest = new PeriodicWorkRequest.Builder(FolderScanWorker.class,
+                FOLDER_SCAN_INTERVAL_HOURS, TimeUnit.HOURS)
+                .setConstraints(FolderScanWorker.constraints())
+                .setInputData(scanInput)
+                .build();
+        getWorkManager().enqueueUniquePeriodicWork(
+                FOLDER_SCAN_WORK_NAME, ExistingPeriodicWorkPolicy.REPLACE, scanRequest);
+    }
+
+    /**
+     * Returns a new tag for the WorkRequests of one chain, which CleanupWorker uses to tell when
+     * the chain's temporary files are no longer needed
+     */
+    private static String newChainTag() {
+        return TAG_CHAIN_PREFIX + UUID.randomUUID();
     }
 
     private Uri uriOrNull(String uriString) {
@@ -126,7 +403,57 @@ public class BlurViewModel extends AndroidViewModel {
      * Setters
      */
     void setImageUri(String uri) {
-        mImageUri = uriOrNull(uri);
+        Uri imageUri = uriOrNull(uri);
+        if (mPreview != null && (imageUri == null || !imageUri.equals(mImageUri))) {
+            mPreview.release();
+            mPreview = null;
+            mPreviewBitmap.setValue(null);
+        }
+        mImageUri = imageUri;
+    }
+
+    /**
+     * Renders a low-resolution preview of blurring the image by {@code radius} into
+     * {@link #getPreview()}, replacing any preview still being rendered. Nothing is enqueued;
+     * the full-resolution blur only runs through {@link #applyBlurRadius(float)}.
+     * @param radius Blur radius in pixels of the original image
+     */
+    void showPreview(float radius) {
+        if (mImageUri == null) {
+            return;
+        }
+        if (mPreview == null) {
+            DisplayMetrics metrics = getApplication().getResources().getDisplayMetrics();
+            mPreview = new BlurPreview(getApplication(), mImageUri,
+                    Math.max(metrics.widthPixels, metrics.heightPixels));
+        }
+        mPreview.show(radius, mPreviewBitmap::setValue);
+    }
+
+    /**
+     * The latest preview from {@link #showPreview(float)}, or null before the first one
+     */
+    LiveData<Bitmap> getPreview() {
+        return mPreviewBitmap;
+    }
+
+    @Override
+    protected void onCleared() {
+        if (mPreview != null) {
+            mPreview.release();
+        }
+    }
+
+    void setImageUris(String[] uris) {
+        mImageUris.clear();
+        if (uris != null) {
+            for (String uri : uris) {
+                Uri parsed = uriOrNull(uri);
+                if (parsed != null) {
+                    mImageUris.add(parsed);
+                }
+            }
+        }
     }
 
     /**
@@ -136,16 +463,67 @@ public class BlurViewModel extends AndroidViewModel {
         return mImageUri;
     }
 
+    /**
+     * Whether more than one image was selected
+     */
+    boolean isBatch() {
+        return mImageUris.size() > 1;
+    }
+
+    int getBatchSize() {
+        return mImageUris.size();
+    }
+
     //Add a getter method for mSavedWorkInfo
-    LiveData<List<WorkInfo>> getSavedWorkInfo() {
+    LiveData<WorkInfo> getSavedWorkInfo() {
         return mSavedWorkInfo;
     }
 
     //Add a getter method for mBlurWorkInfo
-    LiveData<List<WorkInfo>> getBlurWorkInfo() {
+    LiveData<WorkInfo> getBlurWorkInfo() {
         return mBlurWorkInfo;
     }
 
+    //Every WorkInfo of the current batch, including cleanup and blur steps
+    LiveData<List<WorkInfo>> getBatchWorkInfo() {
+        return mBatchWorkInfo;
+    }
+
+    @Nullable
+    private static WorkInfo firstWithTag(@Nullable List<WorkInfo> workInfos, String tag) {
+        if (workInfos != null) {
+            for (WorkInfo workInfo : workInfos) {
+                if (workInfo.getTags().contains(tag)) {
+                    return workInfo;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the blur of a chain to show progress for: the running one, else the next one still
+     * to run, else any of them once all are finished
+     */
+    @Nullable
+    private static WorkInfo currentBlur(@Nullable List<WorkInfo> workInfos) {
+        WorkInfo current = null;
+        if (workInfos != null) {
+            for (WorkInfo workInfo : workInfos) {
+                if (!workInfo.getTags().contains(BLUR_OUTPUT)) {
+                    continue;
+                }
+                if (workInfo.getState() == WorkInfo.State.RUNNING) {
+                    return workInfo;
+                }
+                if (current == null || current.getState().isFinished()) {
+                    current = workInfo;
+                }
+            }
+        }
+        return current;
+    }
+
     /**
      * Setter method for outputUri
      */
@@ -161,22 +539,24 @@ public class BlurViewModel extends AndroidViewModel {
     }
 
     /**
-     * Cancel work using the work's unique name
-     * to cancel all the work instead of just a particular step
-     * by unique chain name
+     * Cancel every single-image chain by the tag they all share, and the batch by its unique
+     * name, to cancel all the work instead of just a particular step
      */
     void cancelWork() {
-        mWorkManager.cancelUniqueWork(IMAGE_MANIPULATION_WORK_NAME);
+        getWorkManager().cancelAllWorkByTag(IMAGE_MANIPULATION_WORK_NAME);
+        getWorkManager().cancelUniqueWork(BATCH_MANIPULATION_WORK_NAME);
     }
 
     /**
      * Create the input data bundle which includes the Uri to operate on
+     * @param blurLevel Number of blur passes the receiving worker should apply
      * @return Data which contains the image uri as a string
      */
-    private Data createInputDataForUri() {
+    private Data createInputDataForUri(int blurLevel) {
         Data.Builder builder = new Data.Builder();
         if (mImageUri != null )
             builder.putString(KEY_IMAGE_URI, mImageUri.toString());
+        builder.putInt(KEY_BLUR_LEVEL, blurLevel);
 
         return builder.build();
     }
@@ -29,17 +29,82 @@ public final class Constants {
     public static final String CHANNEL_ID = "VERBOSE_NOTIFICATION" ;
     public static final int NOTIFICATION_ID = 1;
 
-    // The name of the image manipulation work
+    // Tag of every single-image chain, and the prefix of each one's unique name
     static final String IMAGE_MANIPULATION_WORK_NAME = "image_manipulation_work";
+    // The name of the batch image manipulation work
+    static final String BATCH_MANIPULATION_WORK_NAME = "batch_image_manipulation_work";
+    // Unique periodic work that prunes finished work from WorkManager's database
+    static final String PRUNE_WORK_NAME = "prune_finished_work";
+    static final long PRUNE_INTERVAL_HOURS = 24;
+    // Unique periodic work that scans the watched folder
+    static final String FOLDER_SCAN_WORK_NAME = "folder_scan";
+    static final long FOLDER_SCAN_INTERVAL_HOURS = 1;
 
     // Other keys
     public static final String OUTPUT_PATH = "blur_filter_outputs";
     public static final String KEY_IMAGE_URI = "KEY_IMAGE_URI";
+    public static final String KEY_IMAGE_URIS = "KEY_IMAGE_URIS";
+    // Number of radius-10 blur passes a single BlurWorker should fold into one blur
+    public static final String KEY_BLUR_LEVEL = "KEY_BLUR_LEVEL";
+    // Blur radius in source pixels; wins over KEY_BLUR_LEVEL when set
+    public static final String KEY_BLUR_RADIUS = "KEY_BLUR_RADIUS";
+    // Set on BlurWorkers whose output only feeds another BlurWorker
+    public static final String KEY_INTERMEDIATE_OUTPUT = "KEY_INTERMEDIATE_OUTPUT";
+    // Longest side of the blurred output in pixels; 0 keeps the input size
+    public static final String KEY_MAX_OUTPUT_DIMENSION = "KEY_MAX_OUTPUT_DIMENSION";
+    // How far below the output size the blur may run, from 0 (not at all) to 1
+    public static final String KEY_QUALITY_TOLERANCE = "KEY_QUALITY_TOLERANCE";
+    // Whether opaque inputs may be blurred as RGB_565, halving bitmap memory; defaults to true.
+    // Colours then differ from an ARGB_8888 blur by at most 8/255 in red and blue and 4/255 in
+    // green, which can show as faint banding in very smooth gradients
+    public static final String KEY_REDUCE_OPAQUE = "KEY_REDUCE_OPAQUE";
+    // Forces strip-by-strip blurring even when the image would fit in memory
+    public static final String KEY_TILED = "KEY_TILED";
+    // Rows per strip in tiled mode
+    public static final String KEY_TILE_ROWS = "KEY_TILE_ROWS";
+    // Most BlurWorkers of one batch, those sharing a chain tag, that may blur at the same time
+    public static final String KEY_BATCH_CONCURRENCY = "KEY_BATCH_CONCURRENCY";
+    // Share of the heap, from 0 to 1, that BlurWorkers running at the same time may use together
+    public static final String KEY_HEAP_SHARE = "KEY_HEAP_SHARE";
+    // Name of the OutputCodec a BlurWorker writes; defaults to RAW for intermediates and
+    // WEBP_LOSSLESS for final outputs
+    public static final String KEY_OUTPUT_CODEC = "KEY_OUTPUT_CODEC";
+    // JPEG quality from 0 to 100
+    public static final String KEY_OUTPUT_QUALITY = "KEY_OUTPUT_QUALITY";
+    // Name of the OutputCodec SaveImageToFileWorker stores; unset keeps the format the blur wrote
+    public static final String KEY_SAVE_CODEC = "KEY_SAVE_CODEC";
+    // Progress of a BlurWorker from 0 to 100
+    public static final String KEY_PROGRESS = "blurProgress";
     static final String TAG_OUTPUT = "OUTPUT";
     static final String BLUR_OUTPUT = "BLUR_OUTPUT";
+    static final String TAG_BATCH_OUTPUT = "BATCH_OUTPUT";
+
+    // Prefix of the tag every WorkRequest of one chain shares; the rest is unique to the chain
+    public static final String TAG_CHAIN_PREFIX = "chain:";
 
     public static final long DELAY_TIME_MILLIS = 3000;
 
+    // Disk space CleanupWorker lets cached blurs use
+    public static final String KEY_DISK_BUDGET_BYTES = "KEY_DISK_BUDGET_BYTES";
+    public static final long DEFAULT_DISK_BUDGET_BYTES = 64L * 1024 * 1024;
+    // Age after which PruneWorker deletes a temporary file no chain journaled. Far longer than
+    // any wait for a constraint, so it never catches an output a pending step is about to read
+    public static final String KEY_MAX_TEMP_AGE_MILLIS = "KEY_MAX_TEMP_AGE_MILLIS";
+    public static final long DEFAULT_MAX_TEMP_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // MediaStore bucket FolderScanWorker watches; wins over KEY_WATCH_DIRECTORY
+    public static final String KEY_WATCH_BUCKET_ID = "KEY_WATCH_BUCKET_ID";
+    // Absolute path of the directory FolderScanWorker watches
+    public static final String KEY_WATCH_DIRECTORY = "KEY_WATCH_DIRECTORY";
+    // Most images one FolderScanWorker run enqueues
+    public static final String KEY_SCAN_BATCH_SIZE = "KEY_SCAN_BATCH_SIZE";
+    public static final int DEFAULT_SCAN_BATCH_SIZE = 16;
+    // MediaStore id, modification time and size of a scanned image, which its save records in
+    // the processed index once it succeeds
+    public static final String KEY_SCAN_MEDIA_ID = "KEY_SCAN_MEDIA_ID";
+    public static final String KEY_SCAN_DATE_MODIFIED = "KEY_SCAN_DATE_MODIFIED";
+    public static final String KEY_SCAN_SIZE = "KEY_SCAN_SIZE";
+
     // Ensures this class is never instantiated
     private Constants() {}
 }
\ No newline at end of file
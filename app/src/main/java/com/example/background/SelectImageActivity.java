@@ -18,6 +18,7 @@ package com.example.background;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -31,6 +32,7 @@ import androidx.core.content.ContextCompat;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -55,6 +57,7 @@ public class SelectImageActivity extends AppCompatActivity {
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_select);
+        BlurApplication.reportFirstFrame(this);
 
         if (savedInstanceState != null) {
             mPermissionRequestCount =
@@ -69,6 +72,7 @@ public class SelectImageActivity extends AppCompatActivity {
             Intent chooseIntent = new Intent(
                     Intent.ACTION_PICK,
                     MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+            chooseIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
             startActivityForResult(chooseIntent, REQUEST_CODE_IMAGE);
         });
     }
@@ -145,20 +149,29 @@ public class SelectImageActivity extends AppCompatActivity {
     }
 
     private void handleImageRequestResult(Intent data) {
-        Uri imageUri = null;
+        List<String> imageUris = new ArrayList<>();
         if (data.getClipData() != null) {
-            imageUri = data.getClipData().getItemAt(0).getUri();
+            ClipData clipData = data.getClipData();
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) {
+                    imageUris.add(uri.toString());
+                }
+            }
         } else if (data.getData() != null) {
-            imageUri = data.getData();
+            imageUris.add(data.getData().toString());
         }
 
-        if (imageUri == null) {
+        if (imageUris.isEmpty()) {
             Log.e(TAG, "Invalid input image Uri.");
             return;
         }
 
         Intent filterIntent = new Intent(this, BlurActivity.class);
-        filterIntent.putExtra(Constants.KEY_IMAGE_URI, imageUri.toString());
+        filterIntent.putExtra(Constants.KEY_IMAGE_URI, imageUris.get(0));
+        if (imageUris.size() > 1) {
+            filterIntent.putExtra(Constants.KEY_IMAGE_URIS, imageUris.toArray(new String[0]));
+        }
         startActivity(filterIntent);
     }
 }
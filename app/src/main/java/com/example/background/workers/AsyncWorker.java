@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkerParameters;
+
+import com.example.background.Constants;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base class for workers that run as a sequence of steps, each handed to the executor that suits
+ * it, instead of blocking one thread from start to finish.
+ *
+ * A step either schedules the next step or calls {@link #finish(Result)}. A step that throws
+ * fails the work, and once the work has been stopped no further steps run.
+ */
+abstract class AsyncWorker extends ListenableWorker {
+
+    /**
+     * One step of the work
+     */
+    interface Step {
+        void run() throws Exception;
+    }
+
+    private final String mTag = getClass().getSimpleName();
+    private CallbackToFutureAdapter.Completer<Result> mCompleter;
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+    // When the work was asked to stop, or 0 while it has not been
+    private volatile long mStopRequestedNanos;
+
+    AsyncWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams) {
+        super(appContext, workerParams);
+    }
+
+    @NonNull
+    @Override
+    public final ListenableFuture<Result> startWork() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            mCompleter = completer;
+            run(WorkerExecutors.io(), this::onStart);
+            return mTag;
+        });
+    }
+
+    /**
+     * First step of the work, run on the I/O executor
+     */
+    abstract void onStart() throws Exception;
+
+    /**
+     * Returns the tag shared by every worker of this worker's chain, or null if it has none
+     */
+    @Nullable
+    final String chainTag() {
+        for (String tag : getTags()) {
+            if (tag.startsWith(Constants.TAG_CHAIN_PREFIX)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs {@code step} on {@code executor}
+     */
+    final void run(@NonNull Executor executor, @NonNull Step step) {
+        executor.execute(() -> {
+            if (isStopped()) {
+                finish(Result.failure());
+                return;
+            }
+            try {
+                step.run();
+            } catch (Throwable throwable) {
+                if (isStopped()) {
+                    Log.d(mTag, "Work stopped: " + throwable);
+                } else {
+                    Log.e(mTag, "Work failed", throwable);
+                }
+                finish(Result.failure());
+            }
+        });
+    }
+
+    /**
+     * Runs {@code step} on {@code executor} after {@code delayMillis}, without holding a thread
+     * while waiting
+     */
+    final void runDelayed(long delayMillis, @NonNull Executor executor, @NonNull Step step) {
+        long start = System.nanoTime();
+        WorkerExecutors.scheduler().schedule(() -> {
+            WorkerMetrics.record(WorkerMetrics.Stage.SLEEP, System.nanoTime() - start, 0);
+            run(executor, step);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Completes the work; later calls are ignored
+     */
+    final void finish(@NonNull Result result) {
+        if (mFinished.compareAndSet(false, true)) {
+            mCompleter.set(result);
+            onFinish();
+            long stopRequested = mStopRequestedNanos;
+            if (stopRequested != 0) {
+                WorkerMetrics.record(
+                        WorkerMetrics.Stage.STOP, System.nanoTime() - stopRequested, 0);
+            }
+        }
+    }
+
+    /**
+     * Notes when the stop was requested, so the time until the steps notice it and finish is
+     * recorded. Subclasses that run long loops also signal those loops from here.
+     */
+    @Override
+    public void onStopped() {
+        mStopRequestedNanos = System.nanoTime();
+    }
+
+    /**
+     * Called once when the work completes, however it completes, to release anything the steps
+     * still hold. Runs on the thread that finished the work.
+     */
+    void onFinish() {
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caps how many blurs of one batch run at the same time. Every blur of a batch shares the
+ * batch's tag and the same permit count; a blur takes a permit before it asks
+ * {@link MemoryBudget} for memory and gives it back when it finishes. Blurs over the limit wait
+ * in arrival order, without holding a thread, like they do for memory.
+ *
+ * Batches are independent of each other, and a batch's state is dropped once none of its blurs
+ * holds or waits for a permit.
+ */
+final class BatchPermits {
+
+    private static final class Batch {
+        int running;
+        final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    }
+
+    private static final Map<String, Batch> sBatches = new HashMap<>();
+
+    /**
+     * Runs {@code onAdmitted} once fewer than {@code permits} blurs of {@code batch} are running.
+     * It runs on the calling thread if a permit is free straight away, and otherwise on the
+     * thread whose {@link #release(String)} freed one, so it should only hand the work on.
+     */
+    static void acquire(String batch, int permits, Runnable onAdmitted) {
+        boolean admitted;
+        synchronized (BatchPermits.class) {
+            Batch state = sBatches.get(batch);
+            if (state == null) {
+                state = new Batch();
+                sBatches.put(batch, state);
+            }
+            admitted = state.running < Math.max(1, permits);
+            if (admitted) {
+                state.running++;
+            } else {
+                state.waiting.add(onAdmitted);
+            }
+        }
+        if (admitted) {
+            onAdmitted.run();
+        }
+    }
+
+    /**
+     * Gives back a permit granted by {@link #acquire(String, int, Runnable)} and hands it to the
+     * next blur of the batch waiting for one
+     */
+    static void release(String batch) {
+        Runnable next;
+        synchronized (BatchPermits.class) {
+            Batch state = sBatches.get(batch);
+            if (state == null) {
+                return;
+            }
+            next = state.waiting.poll();
+            if (next == null) {
+                state.running--;
+                if (state.running <= 0) {
+                    sBatches.remove(batch);
+                }
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private BatchPermits() {
+    }
+}
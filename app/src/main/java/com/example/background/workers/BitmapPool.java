@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Process-wide pool of mutable bitmaps shared by the blur workers, keyed by width, height and
+ * config and capped at an eighth of the heap. Evicted bitmaps are recycled.
+ */
+final class BitmapPool {
+
+    private static final LruPool<Long, Bitmap> POOL = new LruPool<>(
+            Runtime.getRuntime().maxMemory() / 8, new LruPool.Evictor<Bitmap>() {
+                @Override
+                public void onEvicted(Bitmap value) {
+                    value.recycle();
+                }
+            });
+
+    /**
+     * Returns a mutable bitmap of the given size and config, reused if possible. A reused bitmap
+     * still holds its previous pixels.
+     */
+    @NonNull
+    static Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap = POOL.acquire(key(width, height, config));
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap back to the pool. Immutable or recycled bitmaps are ignored. The caller must
+     * not touch the bitmap afterwards.
+     */
+    static void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return;
+        }
+        long bytes = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+        POOL.release(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap, bytes);
+    }
+
+    /**
+     * Points {@code options.inBitmap} at a pooled bitmap the decoder can write into, if there is
+     * one. Before KitKat the decoder only reuses bitmaps of the exact decoded size without
+     * subsampling or scaling, so nothing is set in that case.
+     * @return True if a pooled bitmap was attached
+     */
+    static boolean attachInBitmap(@NonNull BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                && (options.inSampleSize > 1 || options.inScaled)) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = POOL.acquire(key(width, height, config));
+        return options.inBitmap != null;
+    }
+
+    static LruPool<Long, Bitmap> pool() {
+        return POOL;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+
+    private BitmapPool() {
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of finished blurs, keyed by a hash of the input image and the blur parameters.
+ *
+ * Cached files live in one directory next to a small text index recording the size and last
+ * access time of each entry. The index is loaded once per process and rewritten when entries are
+ * added or evicted; hits only update it in memory, and the new access order is written with the
+ * next put or trim. Entries whose file has gone missing are dropped on load.
+ * {@link #trimToSize(long, long)} evicts least recently used entries until the cache fits a
+ * byte budget.
+ *
+ * Chains never hold on to cached files: {@link #put(String, File)} copies an output in and
+ * callers copy hits out, so eviction cannot delete a file a pending step still has to read.
+ */
+final class BlurCache {
+
+    static final String DIRECTORY = "blur_cache";
+
+    private static final String INDEX_NAME = "index";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, BlurCache> sInstances = new HashMap<>();
+
+    private static final class Entry {
+        final String key;
+        final String fileName;
+        final long size;
+        long lastAccess;
+
+        Entry(String key, String fileName, long size, long lastAccess) {
+            this.key = key;
+            this.fileName = fileName;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final File mDirectory;
+    private final File mIndexFile;
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    // Whether access times changed since the index was last written
+    private boolean mIndexDirty;
+
+    /**
+     * Returns the cache for {@code directory}, loading its index on first use.
+     */
+    static synchronized BlurCache open(File directory) {
+        String path = directory.getAbsolutePath();
+        BlurCache cache = sInstances.get(path);
+        if (cache == null) {
+            cache = new BlurCache(directory);
+            sInstances.put(path, cache);
+        }
+        return cache;
+    }
+
+    private BlurCache(File directory) {
+        mDirectory = directory;
+        mIndexFile = new File(directory, INDEX_NAME);
+        loadIndex();
+    }
+
+    /**
+     * Hashes the bytes of {@code in} together with a description of the blur parameters. The
+     * stream is read to the end but not closed.
+     * @return Hex SHA-256 digest
+     */
+    static String key(InputStream in, String params) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        digest.update((byte) 0);
+        digest.update(params.getBytes(UTF_8));
+
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Looks up a cached output and marks it as recently used. The file may be evicted at any
+     * time, so callers copy it somewhere of their own before using it.
+     * @return The cached file, or null on a miss
+     */
+    synchronized File get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(mDirectory, entry.fileName);
+        if (!file.exists()) {
+            mEntries.remove(key);
+            mSize -= entry.size;
+            saveIndexQuietly();
+            return null;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        mIndexDirty = true;
+        return file;
+    }
+
+    /**
+     * Copies {@code source} into the cache under {@code key}, replacing any previous entry.
+     * {@code source} stays where it is.
+     */
+    synchronized void put(String key, File source) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        String fileName = key + (dot >= 0 ? name.substring(dot) : "");
+        File target = new File(mDirectory, fileName);
+        File temp = new File(mDirectory, fileName + ".tmp");
+        try {
+            copy(source, temp);
+            if (!temp.renameTo(target)) {
+                throw new IOException("Unable to move " + source + " into the cache");
+            }
+        } finally {
+            temp.delete();
+        }
+
+        Entry previous = mEntries.remove(key);
+        if (previous != null) {
+            mSize -= previous.size;
+            // An entry written in another format leaves a file the index no longer counts
+            if (!previous.fileName.equals(fileName)) {
+                new File(mDirectory, previous.fileName).delete();
+            }
+        }
+        Entry entry = new Entry(key, fileName, target.length(), System.currentTimeMillis());
+        mEntries.put(key, entry);
+        mSize += entry.size;
+        saveIndex();
+    }
+
+    /**
+     * Evicts least recently used entries until the cache holds at most {@code maxBytes}, or
+     * until {@link System#nanoTime()} passes {@code deadlineNanos}; {@link #size()} tells which.
+     * @return Number of entries evicted
+     */
+    synchronized int trimToSize(long maxBytes, long deadlineNanos) {
+        int evicted = 0;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > maxBytes && it.hasNext() && System.nanoTime() <= deadlineNanos) {
+            Entry entry = it.next();
+            it.remove();
+            mSize -= entry.size;
+            new File(mDirectory, entry.fileName).delete();
+            evicted++;
+        }
+        if (evicted > 0 || mIndexDirty) {
+            saveIndexQuietly();
+        }
+        return evicted;
+    }
+
+    synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, replacing it
+     */
+    static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel from = in.getChannel();
+                FileChannel to = out.getChannel();
+                long size = from.size();
+                long position = 0;
+                while (position < size) {
+                    position += from.transferTo(position, size - position, to);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void loadIndex() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        List<Entry> loaded = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mIndexFile), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 4) {
+                    continue;
+                }
+                File file = new File(mDirectory, parts[1]);
+                if (file.exists()) {
+                    loaded.add(new Entry(parts[0], parts[1], Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // A damaged index only costs us the entries it described
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        Collections.sort(loaded, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.lastAccess, b.lastAccess);
+            }
+        });
+        for (Entry entry : loaded) {
+            mEntries.put(entry.key, entry);
+            mSize += entry.size;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        File temp = new File(mDirectory, INDEX_NAME + ".tmp");
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), UTF_8));
+        try {
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.key + " " + entry.fileName + " " + entry.size + " "
+                        + entry.lastAccess);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(mIndexFile)) {
+            throw new IOException("Unable to replace " + mIndexFile);
+        }
+        mIndexDirty = false;
+    }
+
+    private void saveIndexQuietly() {
+        try {
+            saveIndex();
+        } catch (IOException e) {
+            // Only recency information is lost; the next successful save rewrites the index
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * A backend that can blur one bitmap into another.
+ *
+ * Which backend is fastest varies a lot between devices, so {@link BlurEngines} times every
+ * implementation once and hands out the winner.
+ */
+interface BlurEngine {
+
+    /**
+     * Stable name, used to remember the calibrated engine between runs
+     */
+    @NonNull
+    String getName();
+
+    /**
+     * Blurs {@code input} into {@code output}, which has the same size and config
+     * @param radius Blur radius with the same meaning as ScriptIntrinsicBlur.setRadius
+     * @param progress Stage to advance by {@link GaussianBlur#progressUnits(int, int)} units in
+     *                 total, or null. Engines that cannot report partial progress complete the
+     *                 stage when they finish.
+     */
+    @WorkerThread
+    void blur(@NonNull Bitmap input, @NonNull Bitmap output, float radius,
+              @Nullable ProgressReporter.Stage progress);
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks the {@link BlurEngine} to use on this device.
+ *
+ * The first time an engine is needed every candidate blurs a small synthetic image a few times
+ * and the fastest one wins. The winner is stored in shared preferences together with the build
+ * fingerprint, so calibration runs again after a system update but not on every process start.
+ */
+final class BlurEngines {
+
+    private static final String TAG = BlurEngines.class.getSimpleName();
+
+    private static final String PREFS_NAME = "blur_engines";
+    private static final String KEY_ENGINE = "engine";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    // Calibration image size and number of timed runs per engine, after one warm-up run
+    private static final int CALIBRATION_SIZE = 256;
+    private static final int CALIBRATION_RUNS = 3;
+
+    private static BlurEngine sEngine;
+
+    /**
+     * Returns the calibrated engine, calibrating first if this device has no stored result
+     * @param context Any context; only the application context is kept
+     */
+    @WorkerThread
+    @NonNull
+    static synchronized BlurEngine get(@NonNull Context context) {
+        if (sEngine != null) {
+            return sEngine;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        SharedPreferences prefs =
+                applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String stored = prefs.getString(KEY_ENGINE, null);
+        if (stored != null && Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            sEngine = create(applicationContext, stored);
+        }
+
+        if (sEngine == null) {
+            sEngine = calibrate(applicationContext);
+            prefs.edit()
+                    .putString(KEY_ENGINE, sEngine.getName())
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+        return sEngine;
+    }
+
+    /**
+     * Times every available engine on a synthetic image and returns the fastest
+     */
+    @WorkerThread
+    @NonNull
+    static BlurEngine calibrate(@NonNull Context applicationContext) {
+        Bitmap input = syntheticImage();
+        Bitmap output = Bitmap.createBitmap(
+                CALIBRATION_SIZE, CALIBRATION_SIZE, Bitmap.Config.ARGB_8888);
+
+        List<BlurEngine> candidates = candidates(applicationContext);
+        BlurEngine best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (BlurEngine engine : candidates) {
+            try {
+                engine.blur(input, output, WorkerUtils.BLUR_RADIUS, null);
+                long fastest = Long.MAX_VALUE;
+                for (int i = 0; i < CALIBRATION_RUNS; i++) {
+                    long start = System.nanoTime();
+                    engine.blur(input, output, WorkerUtils.BLUR_RADIUS, null);
+                    fastest = Math.min(fastest, System.nanoTime() - start);
+                }
+                Log.i(TAG, String.format("%s took %d us", engine.getName(), fastest / 1000));
+                if (fastest < bestNanos) {
+                    bestNanos = fastest;
+                    best = engine;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Engine " + engine.getName() + " failed calibration", e);
+            }
+        }
+
+        input.recycle();
+        output.recycle();
+        for (BlurEngine engine : candidates) {
+            if (engine != best && engine instanceof RenderScriptBlurEngine) {
+                ((RenderScriptBlurEngine) engine).destroy();
+            }
+        }
+        if (best == null) {
+            best = JavaBlurEngine.scalar();
+        }
+        Log.i(TAG, "Using blur engine " + best.getName());
+        return best;
+    }
+
+    private static List<BlurEngine> candidates(@NonNull Context applicationContext) {
+        List<BlurEngine> engines = new ArrayList<>(3);
+        engines.add(JavaBlurEngine.scalar());
+        engines.add(JavaBlurEngine.parallel());
+        try {
+            engines.add(new RenderScriptBlurEngine(applicationContext));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "RenderScript unavailable", e);
+        }
+        return engines;
+    }
+
+    private static BlurEngine create(@NonNull Context applicationContext, String name) {
+        switch (name) {
+            case JavaBlurEngine.NAME_SCALAR:
+                return JavaBlurEngine.scalar();
+            case JavaBlurEngine.NAME_PARALLEL:
+                return JavaBlurEngine.parallel();
+            case RenderScriptBlurEngine.NAME:
+                try {
+                    return new RenderScriptBlurEngine(applicationContext);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "RenderScript unavailable", e);
+                    return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    private static Bitmap syntheticImage() {
+        int[] pixels = new int[CALIBRATION_SIZE * CALIBRATION_SIZE];
+        Random random = new Random(CALIBRATION_SIZE);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return Bitmap.createBitmap(pixels, CALIBRATION_SIZE, CALIBRATION_SIZE,
+                Bitmap.Config.ARGB_8888);
+    }
+
+    private BlurEngines() {
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.FutureTarget;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders quick, screen-sized previews of blurring one image, for trying out blur radii before
+ * any work is enqueued.
+ *
+ * The image is decoded once, no larger than the screen, by an untransformed Glide load whose
+ * result is also kept in Glide's disk cache, and the decoded copy is held until
+ * {@link #release()}. Each preview is a Glide load of that bitmap with a
+ * {@link BlurTransformation}, so trying a new radius only blurs the kept copy, blurred bitmaps
+ * come from Glide's bitmap pool, and going back to a radius already tried is served from Glide's
+ * memory cache. Opaque images are decoded as RGB_565, which Glide only does when the image has
+ * no alpha.
+ * Large radii are blurred at a further reduced size, like {@link BlurPlan} does for the real
+ * blur. Asking for a new preview cancels the load still running, including a blur already under
+ * way, and results that are overtaken are never delivered.
+ */
+public final class BlurPreview {
+
+    private static final String TAG = BlurPreview.class.getSimpleName();
+
+    // Previews favour speed over fidelity: shrink until sigma is about a pixel at working size
+    private static final float PREVIEW_QUALITY_TOLERANCE = 1f;
+
+    /**
+     * Receives finished previews on the main thread
+     */
+    public interface Listener {
+        void onPreview(@NonNull Bitmap preview);
+    }
+
+    private final Context mApplicationContext;
+    private final Uri mImageUri;
+    private final int mMaxDimension;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Load in flight, if any, and the reporter that stops its blur; guarded by this
+    private FutureTarget<Bitmap> mRunning;
+    private ProgressReporter mRunningProgress;
+    // Load whose bitmap is on screen; only touched on the main thread. Kept until it is replaced
+    // so Glide does not recycle a bitmap that is still being shown.
+    private FutureTarget<Bitmap> mShown;
+    // Size of the original image, read by the first preview
+    private volatile int mSourceWidth;
+    private volatile int mSourceHeight;
+    // Untransformed, screen-sized load every preview blurs; guarded by mSourceLock, which is
+    // held while it decodes so the main thread never waits for it
+    private final Object mSourceLock = new Object();
+    private FutureTarget<Bitmap> mSource;
+
+    /**
+     * @param maxDimension Longest side of the decoded copy, typically the screen's longest side
+     */
+    public BlurPreview(@NonNull Context context, @NonNull Uri imageUri, int maxDimension) {
+        mApplicationContext = context.getApplicationContext();
+        mImageUri = imageUri;
+        mMaxDimension = maxDimension;
+    }
+
+    /**
+     * Starts rendering a preview of blurring by {@code radius}, cancelling any preview still
+     * running
+     * @param radius Blur radius in pixels of the original image
+     */
+    @MainThread
+    public void show(final float radius, @NonNull final Listener listener) {
+        cancel();
+        final int generation = mGeneration.get();
+        WorkerExecutors.io().execute(() -> {
+            final FutureTarget<Bitmap> target;
+            final Bitmap preview;
+            try {
+                target = load(radius, generation);
+                if (target == null) {
+                    return;
+                }
+                preview = target.get();
+            } catch (CancellationException | InterruptedException e) {
+                return;
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                Log.w(TAG, "Unable to render preview of " + mImageUri, e);
+                return;
+            }
+            mMainHandler.post(() -> {
+                if (generation == mGeneration.get()) {
+                    listener.onPreview(preview);
+                    clear(mShown);
+                    mShown = target;
+                } else {
+                    clear(target);
+                }
+            });
+        });
+    }
+
+    /**
+     * Cancels the preview still running, if any; its result will not be delivered
+     */
+    @MainThread
+    public synchronized void cancel() {
+        mGeneration.incrementAndGet();
+        if (mRunning != null) {
+            // Cancelling the target alone does not stop a transformation already running
+            mRunningProgress.cancel();
+            mRunning.cancel(true);
+            mRunning = null;
+            mRunningProgress = null;
+        }
+    }
+
+    /**
+     * Cancels any preview and gives the one last shown, and the decoded copy, back to Glide.
+     * The bitmap last delivered must no longer be displayed.
+     */
+    @MainThread
+    public void release() {
+        cancel();
+        clear(mShown);
+        mShown = null;
+        //A blur cancelled above may still be reading the copy until its next row; its result is
+        //thrown away, so the copy going back to the pool meanwhile does no harm
+        WorkerExecutors.io().execute(() -> {
+            synchronized (mSourceLock) {
+                clear(mSource);
+                mSource = null;
+            }
+        });
+    }
+
+    /**
+     * Starts the Glide load for {@code generation}, decoding the image first if no preview has
+     * yet
+     * @return The pending load, or null if the preview was overtaken first
+     */
+    @WorkerThread
+    private FutureTarget<Bitmap> load(float radius, int generation)
+            throws IOException, ExecutionException, InterruptedException {
+        if (mSourceWidth == 0) {
+            BitmapFactory.Options bounds =
+                    WorkerUtils.decodeBounds(mApplicationContext, mImageUri);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                throw new IOException("Unable to read size of " + mImageUri);
+            }
+            mSourceHeight = bounds.outHeight;
+            mSourceWidth = bounds.outWidth;
+        }
+        Bitmap source = source();
+        synchronized (this) {
+            if (generation != mGeneration.get()) {
+                return null;
+            }
+            ProgressReporter progress = new ProgressReporter(percent -> { }, 1);
+            //Glide does not own a bitmap model, so it never pools or recycles the kept copy
+            FutureTarget<Bitmap> target = Glide.with(mApplicationContext)
+                    .asBitmap()
+                    .load(source)
+                    .transform(new BlurTransformation(mApplicationContext, radius, mSourceWidth,
+                            mSourceHeight, PREVIEW_QUALITY_TOLERANCE, progress))
+                    .submit(source.getWidth(), source.getHeight());
+            mRunning = target;
+            mRunningProgress = progress;
+            return target;
+        }
+    }
+
+    /**
+     * Returns the screen-sized decoded copy, decoding it on first use
+     */
+    @WorkerThread
+    private Bitmap source() throws ExecutionException, InterruptedException {
+        synchronized (mSourceLock) {
+            if (mSource == null) {
+                mSource = Glide.with(mApplicationContext)
+                        .asBitmap()
+                        .load(mImageUri)
+                        .format(DecodeFormat.PREFER_RGB_565)
+                        .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                        .submit(mMaxDimension, mMaxDimension);
+            }
+            try {
+                return mSource.get();
+            } catch (ExecutionException | RuntimeException e) {
+                //A failed decode is tried again by the next preview
+                clear(mSource);
+                mSource = null;
+                throw e;
+            }
+        }
+    }
+
+    private void clear(FutureTarget<Bitmap> target) {
+        if (target != null) {
+            Glide.with(mApplicationContext).clear(target);
+        }
+    }
+}
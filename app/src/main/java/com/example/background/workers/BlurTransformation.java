@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapTransformation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+/**
+ * Glide transformation that blurs with the same engines as {@link BlurWorker}, so any view
+ * loading an image through Glide can show it blurred.
+ *
+ * Output bitmaps come from Glide's own bitmap pool. The radius, the width it refers to and the
+ * quality tolerance are all part of the cache key, so each blur of an image is computed once and
+ * then served from Glide's memory and disk caches. Like {@link BlurPlan}, strong blurs are run
+ * at a reduced size, and the result is returned at that size for the view to scale up.
+ *
+ * A transformation made with a {@link ProgressReporter} stops its blur at the next row or column
+ * boundary once the reporter is cancelled; the reporter is not part of the cache key.
+ */
+public final class BlurTransformation extends BitmapTransformation {
+
+    private static final String ID = "com.example.background.workers.BlurTransformation";
+    private static final byte[] ID_BYTES = ID.getBytes(Charset.forName("UTF-8"));
+
+    private final Context mApplicationContext;
+    private final float mRadius;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final float mQualityTolerance;
+    private final ProgressReporter mProgress;
+
+    /**
+     * Blurs by {@code radius} pixels of the bitmap Glide hands over, at the default quality
+     */
+    public BlurTransformation(@NonNull Context context, float radius) {
+        this(context, radius, 0, 0, BlurPlan.DEFAULT_QUALITY_TOLERANCE);
+    }
+
+    /**
+     * @param radius Blur radius in pixels of an image {@code sourceWidth} pixels wide
+     * @param sourceWidth Width of the original image, so a downsampled load looks the same as
+     *                    a full-size one; 0 takes the radius in pixels of the bitmap Glide hands
+     *                    over
+     * @param sourceHeight Height of the original image; ignored when {@code sourceWidth} is 0
+     * @param qualityTolerance How much the blur may shrink the image first, from 0 to 1
+     */
+    public BlurTransformation(@NonNull Context context, float radius, int sourceWidth,
+                              int sourceHeight, float qualityTolerance) {
+        this(context, radius, sourceWidth, sourceHeight, qualityTolerance, null);
+    }
+
+    /**
+     * @param progress Reporter whose cancellation stops the blur, or null
+     */
+    BlurTransformation(@NonNull Context context, float radius, int sourceWidth, int sourceHeight,
+                       float qualityTolerance, ProgressReporter progress) {
+        mApplicationContext = context.getApplicationContext();
+        mRadius = radius;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mQualityTolerance = qualityTolerance;
+        mProgress = progress;
+    }
+
+    @Override
+    protected Bitmap transform(@NonNull BitmapPool pool, @NonNull Bitmap toTransform,
+                               int outWidth, int outHeight) {
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.PREVIEW);
+        try {
+            int width = toTransform.getWidth();
+            int height = toTransform.getHeight();
+            float radius = mSourceWidth > 0 && mSourceHeight > 0
+                    ? BlurPlan.create(mSourceWidth, mSourceHeight, mRadius, 0f, 0)
+                            .radiusAt(width)
+                    : mRadius;
+            BlurPlan plan = BlurPlan.create(width, height, radius, mQualityTolerance, 0);
+            if (mProgress != null) {
+                mProgress.throwIfCancelled();
+            }
+
+            Bitmap working = toTransform;
+            Bitmap output = null;
+            try {
+                if (plan.needsResize(plan.workingWidth, plan.workingHeight)) {
+                    working = pool.get(plan.workingWidth, plan.workingHeight,
+                            config(toTransform));
+                    Canvas canvas = new Canvas(working);
+                    canvas.drawBitmap(toTransform, null,
+                            new Rect(0, 0, plan.workingWidth, plan.workingHeight),
+                            new Paint(Paint.FILTER_BITMAP_FLAG));
+                }
+                output = pool.get(working.getWidth(), working.getHeight(), config(working));
+                ProgressReporter.Stage stage = mProgress != null
+                        ? mProgress.stage(0, 100, GaussianBlur.progressUnits(
+                                working.getWidth(), working.getHeight()))
+                        : null;
+                BlurEngines.get(mApplicationContext).blur(working, output,
+                        plan.radiusAt(working.getWidth()), stage);
+            } catch (RuntimeException e) {
+                // Cancelled or failed; nothing refers to the output any more
+                if (output != null) {
+                    pool.put(output);
+                }
+                throw e;
+            } finally {
+                if (working != toTransform) {
+                    pool.put(working);
+                }
+            }
+            return output;
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.PREVIEW, start, 0);
+        }
+    }
+
+    private static Bitmap.Config config(Bitmap bitmap) {
+        return bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BlurTransformation)) {
+            return false;
+        }
+        BlurTransformation other = (BlurTransformation) o;
+        return mRadius == other.mRadius && mSourceWidth == other.mSourceWidth
+                && mSourceHeight == other.mSourceHeight
+                && mQualityTolerance == other.mQualityTolerance;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = ID.hashCode();
+        hash = 31 * hash + Float.floatToIntBits(mRadius);
+        hash = 31 * hash + mSourceWidth;
+        hash = 31 * hash + mSourceHeight;
+        hash = 31 * hash + Float.floatToIntBits(mQualityTolerance);
+        return hash;
+    }
+
+    @Override
+    public void updateDiskCacheKey(@NonNull MessageDigest messageDigest) {
+        messageDigest.update(ID_BYTES);
+        messageDigest.update(ByteBuffer.allocate(16)
+                .putFloat(mRadius)
+                .putInt(mSourceWidth)
+                .putInt(mSourceHeight)
+                .putFloat(mQualityTolerance)
+                .array());
+    }
+}
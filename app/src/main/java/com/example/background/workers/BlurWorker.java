@@ -1,7 +1,6 @@
 package com.example.background.workers;
 
 import android.annotation.SuppressLint;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -12,66 +11,332 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.work.Data;
-import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import com.example.background.Constants;
 import com.example.background.R;
 
-public class BlurWorker extends Worker {
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+public class BlurWorker extends AsyncWorker {
     public BlurWorker(
             @NonNull Context appContext,
             @NonNull WorkerParameters workerParams
     ) {
         super(appContext, workerParams);
-
-        setProgressAsync(new Data.Builder().putInt("blurProgress", 30).build());
+        mProgress = new ProgressReporter(
+                percent -> setProgressAsync(
+                        new Data.Builder().putInt(Constants.KEY_PROGRESS, percent).build()),
+                PROGRESS_UPDATES_PER_SECOND);
     }
 
     private static final String TAG = BlurWorker.class.getSimpleName();
 
-    @NonNull
+    // Rows per strip when blurring in tiled mode
+    private static final int DEFAULT_TILE_ROWS = 256;
+
+    // Each progress update is a database write, so the blur loops' reports are coalesced
+    private static final int PROGRESS_UPDATES_PER_SECOND = 4;
+    // Overall progress at the end of each stage; the blur and the encode report in between
+    private static final int PROGRESS_PLANNED = 5;
+    private static final int PROGRESS_DECODED = 20;
+    private static final int PROGRESS_BLURRED = 80;
+
+    // Publishes progress, and stops the blur and encode loops once the work is stopped
+    private final ProgressReporter mProgress;
+
+    // State handed from one step to the next; each step runs after the previous one finished
+    private String mResourceUri;
+    private float mRadius;
+    private boolean mIntermediate;
+    private int mMaxOutputDimension;
+    private float mQualityTolerance;
+    private boolean mReduceOpaque;
+    private boolean mForceTiled;
+    private int mTileRows;
+    private OutputCodec mCodec;
+    private int mQuality;
+    private float mHeapShare;
+    private String mCacheKey;
+    private BlurPlan mPlan;
+    private Bitmap.Config mConfig;
+    private boolean mTiled;
+    // Memory granted by MemoryBudget, given back when the work finishes
+    private long mAdmittedBytes;
+    // Most blurs of this worker's batch that may run at once, or 0 for no limit
+    private int mBatchConcurrency;
+    // Batch whose permit this worker holds, given back when the work finishes
+    private String mPermitBatch;
+    private Bitmap mBitmap;
+
     @Override
-    public Result doWork() {
+    void onStart() {
         Context applicationContext = getApplicationContext();
-        String resourceUri = getInputData().getString(Constants.KEY_IMAGE_URI);
+        mResourceUri = getInputData().getString(Constants.KEY_IMAGE_URI);
+        //An explicit radius is blurred in one pass however large it is; otherwise the requested
+        //number of passes is folded into a single equivalent radius
+        mRadius = getInputData().getFloat(Constants.KEY_BLUR_RADIUS, 0f);
+        if (mRadius <= 0f) {
+            mRadius = GaussianBlur.equivalentRadius(WorkerUtils.BLUR_RADIUS,
+                    getInputData().getInt(Constants.KEY_BLUR_LEVEL, 1));
+        }
+        mIntermediate = getInputData().getBoolean(Constants.KEY_INTERMEDIATE_OUTPUT, false);
+        mMaxOutputDimension = getInputData().getInt(Constants.KEY_MAX_OUTPUT_DIMENSION, 0);
+        mQualityTolerance = getInputData().getFloat(
+                Constants.KEY_QUALITY_TOLERANCE, BlurPlan.DEFAULT_QUALITY_TOLERANCE);
+        mReduceOpaque = getInputData().getBoolean(Constants.KEY_REDUCE_OPAQUE, true);
+        mForceTiled = getInputData().getBoolean(Constants.KEY_TILED, false);
+        mTileRows = getInputData().getInt(Constants.KEY_TILE_ROWS, DEFAULT_TILE_ROWS);
+        //Intermediates only feed the next blur, so they default to the cheapest format
+        mCodec = OutputCodec.fromName(
+                getInputData().getString(Constants.KEY_OUTPUT_CODEC),
+                mIntermediate ? OutputCodec.DEFAULT_INTERMEDIATE : OutputCodec.DEFAULT_FINAL);
+        mQuality = getInputData().getInt(
+                Constants.KEY_OUTPUT_QUALITY, OutputCodec.DEFAULT_QUALITY);
+        mHeapShare = getInputData().getFloat(
+                Constants.KEY_HEAP_SHARE, MemoryBudget.DEFAULT_HEAP_SHARE);
+        mBatchConcurrency = getInputData().getInt(Constants.KEY_BATCH_CONCURRENCY, 0);
+
+        //Finished blurs of an original image are cached by content and parameters; a hit is
+        //returned before any of the artificial delay or decoding below
+        if (!mIntermediate && !TextUtils.isEmpty(mResourceUri)) {
+            String params = String.format(Locale.US,
+                    "radius=%.3f tolerance=%.3f reduce=%b max=%d codec=%s quality=%d", mRadius,
+                    mQualityTolerance, mReduceOpaque, mMaxOutputDimension,
+                    WorkerUtils.supportedCodec(mCodec), mQuality);
+            long start = WorkerMetrics.begin(WorkerMetrics.Stage.CACHE_LOOKUP);
+            try {
+                mCacheKey = WorkerUtils.cacheKey(
+                        applicationContext, Uri.parse(mResourceUri), params);
+                File cached = mCacheKey != null
+                        ? WorkerUtils.getBlurCache(applicationContext).get(mCacheKey) : null;
+                if (cached != null) {
+                    // Copied out so a later eviction cannot pull the file from under the save
+                    File output = WorkerUtils.copyToOutputFile(applicationContext, cached);
+                    journal(output);
+                    Log.i(TAG, "Cache hit for " + mResourceUri);
+                    finishWithOutput(Uri.fromFile(output));
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to check blur cache", e);
+            } finally {
+                WorkerMetrics.end(WorkerMetrics.Stage.CACHE_LOOKUP, start, 0);
+            }
+        }
 
         // Makes a notification when the work starts and slows down the work so that it's easier to
         // see each WorkRequest start, even on emulated devices
         WorkerUtils.makeStatusNotification("Blurring image", applicationContext);
-        WorkerUtils.sleep();
+        runDelayed(Constants.DELAY_TIME_MILLIS, WorkerExecutors.io(), this::plan);
+    }
 
-        try {
+    /**
+     * Plans the blur from the image size alone, then waits until the blur's estimated peak
+     * memory fits next to the other blurs running. Runs on the I/O executor.
+     */
+    private void plan() throws IOException {
+        Context applicationContext = getApplicationContext();
+        if (TextUtils.isEmpty(mResourceUri)) {
+            Log.e(TAG, "Invalid input uri");
+            throw new IllegalArgumentException("Invalid input uri");
+        }
 
-            if (TextUtils.isEmpty(resourceUri)) {
-                Log.e(TAG, "Invalid input uri");
-                throw new IllegalArgumentException("Invalid input uri");
-            }
+        //Read the image size first so the decode can skip detail the blur would remove
+        Uri inputUri = Uri.parse(mResourceUri);
+        BitmapFactory.Options bounds = WorkerUtils.decodeBounds(applicationContext, inputUri);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IllegalArgumentException("Unable to read size of " + mResourceUri);
+        }
 
-            setProgressAsync(new Data.Builder().putInt("blurProgress", 50).build());
-            ContentResolver resolver = applicationContext.getContentResolver();
+        mPlan = BlurPlan.create(bounds.outWidth, bounds.outHeight, mRadius,
+                mQualityTolerance, mMaxOutputDimension);
+        //Opaque inputs can be held at half the size, and the blurred and scaled copies follow
+        //the decoded bitmap's config
+        mConfig = WorkerUtils.decodeConfig(inputUri, bounds, mReduceOpaque);
+        mProgress.report(PROGRESS_PLANNED);
 
-            //create the bitmap with user input uri
-            Bitmap picture = BitmapFactory.decodeStream(resolver.openInputStream(Uri.parse(resourceUri)));
+        long inMemoryBytes = mPlan.peakBytes(WorkerUtils.bytesPerPixel(mConfig));
+        mTiled = mForceTiled || !WorkerUtils.fitsInMemory(inMemoryBytes);
+        long peakBytes = mTiled
+                ? StripBlur.peakBytes(mPlan.sourceWidth, mPlan.sourceHeight, mRadius, mTileRows)
+                : inMemoryBytes;
+        Runnable admit = () -> MemoryBudget.acquire(peakBytes, mHeapShare, () -> {
+            mAdmittedBytes = peakBytes;
+            run(WorkerExecutors.io(), this::decode);
+        });
+        //A batch's limit on blurs at once is checked before memory, so blurs waiting for a
+        //permit do not hold memory others could use
+        String batch = chainTag();
+        if (mBatchConcurrency > 0 && batch != null) {
+            BatchPermits.acquire(batch, mBatchConcurrency, () -> {
+                mPermitBatch = batch;
+                admit.run();
+            });
+        } else {
+            admit.run();
+        }
+    }
 
-            //Blur the bitmap
-            Bitmap output = WorkerUtils.blurBitmap(picture, applicationContext);
+    /**
+     * Decodes the image for the in-memory path or runs the whole tiled path. Runs on the I/O
+     * executor once the blur has been admitted.
+     */
+    private void decode() throws IOException {
+        Context applicationContext = getApplicationContext();
+        Uri inputUri = Uri.parse(mResourceUri);
+        if (mTiled) {
+            //Images too large to hold even at the working size are blurred strip by strip at
+            //full resolution and streamed straight into the output file. Reading, blurring and
+            //writing are interleaved per strip, so the whole path stays on this thread.
+            long start = WorkerMetrics.begin(WorkerMetrics.Stage.TILED_BLUR);
+            long bytes = 0;
+            Uri outputUri;
+            try {
+                outputUri = WorkerUtils.blurTiledToFile(applicationContext, inputUri, mRadius,
+                        mTileRows, mCodec,
+                        mProgress.stage(PROGRESS_PLANNED, 100, mPlan.sourceHeight));
+                bytes = new File(outputUri.getPath()).length();
+            } finally {
+                WorkerMetrics.end(WorkerMetrics.Stage.TILED_BLUR, start, bytes);
+            }
+            //The strips are written at full size and as PNG unless raw was asked for. Such a
+            //fallback depends on the memory free on this run, so it is only cached when it is
+            //also what the request asked for; otherwise a later hit would return it for good.
+            OutputCodec codec = WorkerUtils.supportedCodec(mCodec);
+            boolean asRequested = !mPlan.needsResize(mPlan.sourceWidth, mPlan.sourceHeight)
+                    && (codec == OutputCodec.RAW || codec == OutputCodec.PNG
+                            || codec == OutputCodec.PNG_FAST);
+            finishWithOutput(cache(outputUri, asRequested));
+            return;
+        }
 
-            //Write bitmap to temp file
-            Uri outputUri = WorkerUtils.writeBitmapToFile(applicationContext, output);
+        //create the bitmap with user input uri, or the raw output of the previous blur
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.DECODE);
+        try {
+            mBitmap = WorkerUtils.decodeBitmap(applicationContext, inputUri, mPlan, mConfig);
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.DECODE, start,
+                    mBitmap != null ? mBitmap.getByteCount() : 0);
+        }
+        if (mBitmap == null) {
+            throw new IllegalArgumentException("Unable to decode " + inputUri);
+        }
+        mProgress.report(PROGRESS_DECODED);
+        run(WorkerExecutors.compute(), this::blur);
+    }
 
-            setProgressAsync(new Data.Builder().putInt("blurProgress", 100).build());
+    /**
+     * Blurs at the working size, then scales to the requested output size. Runs on the compute
+     * pool.
+     */
+    private void blur() {
+        Bitmap picture = mBitmap;
+        Bitmap output;
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.BLUR);
+        try {
+            output = WorkerUtils.blurBitmap(picture, getApplicationContext(),
+                    mPlan.radiusAt(picture.getWidth()), mProgress.stage(PROGRESS_DECODED,
+                            PROGRESS_BLURRED,
+                            GaussianBlur.progressUnits(picture.getWidth(), picture.getHeight())));
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.BLUR, start, picture.getByteCount());
+        }
+        //mBitmap always holds the one bitmap still in use, so onFinish can return it to the pool
+        mBitmap = output;
+        BitmapPool.put(picture);
+        if (mPlan.needsResize(output.getWidth(), output.getHeight())) {
+            start = WorkerMetrics.begin(WorkerMetrics.Stage.SCALE);
+            Bitmap scaled;
+            try {
+                scaled = WorkerUtils.scaleBitmap(output, mPlan.outputWidth, mPlan.outputHeight);
+            } finally {
+                WorkerMetrics.end(WorkerMetrics.Stage.SCALE, start, 0);
+            }
+            mBitmap = scaled;
+            BitmapPool.put(output);
+        }
+        run(WorkerExecutors.io(), this::encode);
+    }
 
-            Data outputData = new Data.Builder()
-                    .putString(Constants.KEY_IMAGE_URI, outputUri.toString())
-                    .build();
+    /**
+     * Writes the blurred bitmap to a temp file and caches it. Runs on the I/O executor, leaving
+     * the compute pool free for the next image's blur.
+     */
+    private void encode() throws IOException {
+        Bitmap output = mBitmap;
+        mBitmap = null;
+        Uri outputUri = null;
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.ENCODE);
+        try {
+            outputUri = WorkerUtils.writeBitmapToFile(getApplicationContext(), output, mCodec,
+                    mQuality, mProgress.stage(PROGRESS_BLURRED, 100, output.getHeight()));
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.ENCODE, start,
+                    outputUri != null ? new File(outputUri.getPath()).length() : 0);
+            BitmapPool.put(output);
+        }
+        Log.d(TAG, "Bitmap pool " + BitmapPool.pool() + ", buffer pool " + PixelBuffers.pool());
+        finishWithOutput(cache(outputUri, true));
+    }
 
-            //if it is error free, return success
-            return Result.success(outputData);
-        } catch (Throwable throwable) {
-            Log.e(TAG, "Error applying blur", throwable);
-            return Result.failure();
+    /**
+     * Journals the output under this chain, so cleanup can delete it once the chain is over,
+     * and keeps a copy of a cacheable blur so the same request can skip all of the above next
+     * time. A failure to cache only costs that shortcut.
+     * @param cacheable Whether the output is what the cache key describes
+     * @return The output, which stays where it is
+     */
+    private Uri cache(Uri outputUri, boolean cacheable) throws IOException {
+        File output = new File(outputUri.getPath());
+        journal(output);
+        if (mCacheKey != null && cacheable) {
+            try {
+                WorkerUtils.getBlurCache(getApplicationContext()).put(mCacheKey, output);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to cache " + outputUri, e);
+            }
         }
+        return outputUri;
     }
 
+    private void journal(File output) throws IOException {
+        String chainTag = chainTag();
+        if (chainTag != null) {
+            WorkerUtils.getOutputJournal(getApplicationContext()).record(chainTag, output);
+        }
+    }
+
+    private void finishWithOutput(Uri outputUri) {
+        mProgress.finish();
+        Data outputData = new Data.Builder()
+                .putString(Constants.KEY_IMAGE_URI, outputUri.toString())
+                .build();
+        finish(Result.success(outputData));
+    }
+
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        mProgress.cancel();
+    }
+
+    @Override
+    void onFinish() {
+        //A stopped blur gives its bitmap back as soon as its loop notices, not at the next GC
+        if (mBitmap != null) {
+            BitmapPool.put(mBitmap);
+            mBitmap = null;
+        }
+        if (mAdmittedBytes > 0) {
+            MemoryBudget.release(mAdmittedBytes);
+            mAdmittedBytes = 0;
+        }
+        if (mPermitBatch != null) {
+            BatchPermits.release(mPermitBatch);
+            mPermitBatch = null;
+        }
+    }
 }
@@ -1,59 +1,175 @@
 package com.example.background.workers;
 
 import android.content.Context;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.work.Worker;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 import androidx.work.WorkerParameters;
 
 import com.example.background.Constants;
 
-import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Worker to clean up the tmp files
- * Doesn't need to take any input or pass any output.
- * It always deletes the temporary files if the exist.
+ * Optionally takes KEY_DISK_BUDGET_BYTES and doesn't pass any output.
+ * It evicts cached blurs until they fit the disk budget and deletes the journaled temporary files
+ * of chains that have finished or were cancelled. Files of chains with work still to run are
+ * kept however old they are, since a step waiting on a constraint such as charging still needs
+ * them. Each run stops after a short time slice, eviction and journal reads included, and leaves
+ * the rest to a follow-up run outside the chain, so it never holds up the blur behind it for
+ * long. The follow-up resumes at the chain the previous run stopped at rather than at the start
+ * of the journal.
+ *
+ * Files no chain got to journal are left to {@link PruneWorker}, which sweeps the output
+ * directory once a day instead of on every cleanup.
  */
 
-public class CleanupWorker extends Worker {
+public class CleanupWorker extends AsyncWorker {
     public CleanupWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
     }
 
     private static final String TAG = CleanupWorker.class.getSimpleName();
 
-    @NonNull
+    // Longest one run spends deleting before it hands the rest to a follow-up run
+    private static final long SLICE_MILLIS = 50;
+    private static final String CONTINUATION_WORK_NAME = "cleanup_continuation";
+    // Tag of the chain a follow-up run starts at
+    private static final String KEY_RESUME_CHAIN = "KEY_RESUME_CHAIN";
+    // Chains read from the journal at a time
+    private static final int CHAIN_PAGE = 16;
+
     @Override
-    public Result doWork() {
-        Context applicationContext = getApplicationContext();
+    void onStart() {
         // Makes a notification when the work starts and slows down the work so that it's easier to
         // see each WorkRequest start, even on emulated devices
         WorkerUtils.makeStatusNotification("Cleaning up old temporary files",
-                applicationContext);
-        WorkerUtils.sleep();
+                getApplicationContext());
+        runDelayed(Constants.DELAY_TIME_MILLIS, WorkerExecutors.io(), this::cleanUp);
+    }
 
+    private void cleanUp() {
+        Context applicationContext = getApplicationContext();
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.CLEANUP);
         try {
-            File outputDirectory = new File(applicationContext.getFilesDir(), Constants.OUTPUT_PATH);
-            if (outputDirectory.exists()) {
-                File[] entries = outputDirectory.listFiles();
-                if (entries != null && entries.length > 0 ) {
-                    for (File entry : entries) {
-                        String name = entry.getName();
-                        if (!TextUtils.isEmpty(name) && name.endsWith(".png")) {
-                            boolean deleted = entry.delete();
-                            Log.i(TAG, String.format("Deleted %s - %s ", name, deleted));
-                        }
-                    }
-                }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SLICE_MILLIS);
+            long budget = getInputData().getLong(
+                    Constants.KEY_DISK_BUDGET_BYTES, Constants.DEFAULT_DISK_BUDGET_BYTES);
+            String resumeChain = getInputData().getString(KEY_RESUME_CHAIN);
+
+            //Cached blurs are evicted least recently used first until they fit the budget
+            BlurCache cache = WorkerUtils.getBlurCache(applicationContext);
+            int evicted = cache.trimToSize(budget, deadline);
+            Log.i(TAG, String.format("Evicted %d cached blurs", evicted));
+
+            //Files of chains that are still running survive, however old they are
+            boolean done = cache.size() <= budget;
+            if (done) {
+                resumeChain = deleteFinishedChains(applicationContext, resumeChain, deadline);
+                done = resumeChain == null;
+            }
+            if (!done) {
+                Log.i(TAG, "Cleanup time slice used up, continuing in a separate run");
+                continueAt(applicationContext, resumeChain);
             }
 
-            return Result.success();
+            finish(Result.success());
         } catch (Exception e) {
             Log.e(TAG, "Error cleaning up", e);
-            return Result.failure();
+            finish(Result.failure());
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.CLEANUP, start, 0);
+        }
+    }
+
+    /**
+     * Enqueues a follow-up run starting at {@code resumeChain}, or at the first chain if null. A follow-up appends the next one
+     * to its own unique work, which is still running; a chain's cleanup leaves the work to a
+     * follow-up that is already queued and otherwise replaces the finished, or failed, previous
+     * ones.
+     */
+    private void continueAt(Context applicationContext, String resumeChain) throws Exception {
+        WorkManager workManager = WorkManager.getInstance(applicationContext);
+        ExistingWorkPolicy policy;
+        if (getTags().contains(CONTINUATION_WORK_NAME)) {
+            policy = ExistingWorkPolicy.APPEND;
+        } else {
+            for (WorkInfo info
+                    : workManager.getWorkInfosForUniqueWork(CONTINUATION_WORK_NAME).get()) {
+                if (!info.getState().isFinished()) {
+                    return;
+                }
+            }
+            policy = ExistingWorkPolicy.REPLACE;
+        }
+        workManager.enqueueUniqueWork(CONTINUATION_WORK_NAME, policy,
+                new OneTimeWorkRequest.Builder(CleanupWorker.class)
+                        .addTag(CONTINUATION_WORK_NAME)
+                        .setInputData(new Data.Builder()
+                                .putAll(getInputData())
+                                .putString(KEY_RESUME_CHAIN, resumeChain)
+                                .build())
+                        .build());
+    }
+
+    /**
+     * Deletes the journaled files of every chain that is over, starting at {@code resumeChain}
+     * if it is still journaled. Chains keep the order they were first journaled in, so the
+     * chains before it were handled by an earlier run. The journal is read a page of chains at a
+     * time, so a long journal is not copied before the deadline is first checked.
+     * @return The chain to resume at if {@code deadline} passed first, or null once every chain
+     *         was dealt with
+     */
+    private static String deleteFinishedChains(Context applicationContext, String resumeChain,
+                                               long deadline) throws Exception {
+        OutputJournal journal = WorkerUtils.getOutputJournal(applicationContext);
+        WorkManager workManager = WorkManager.getInstance(applicationContext);
+        int deleted = 0;
+        try {
+            String from = resumeChain;
+            while (true) {
+                if (System.nanoTime() > deadline) {
+                    return from;
+                }
+                //One extra chain tells where the next page starts
+                List<String> chains = journal.chains(from, CHAIN_PAGE + 1);
+                int count = Math.min(chains.size(), CHAIN_PAGE);
+                for (int i = 0; i < count; i++) {
+                    String chain = chains.get(i);
+                    if (System.nanoTime() > deadline) {
+                        return chain;
+                    }
+                    if (isOver(workManager, chain)) {
+                        deleted += journal.delete(journal.entries(chain));
+                    }
+                }
+                if (chains.size() <= CHAIN_PAGE) {
+                    return null;
+                }
+                from = chains.get(CHAIN_PAGE);
+            }
+        } finally {
+            Log.i(TAG, String.format("Deleted %d temporary files of finished chains", deleted));
+        }
+    }
+
+    /**
+     * Whether every WorkRequest tagged {@code chainTag} has finished, failed or been cancelled.
+     * A chain WorkManager no longer knows about has been pruned after finishing.
+     */
+    private static boolean isOver(WorkManager workManager, String chainTag) throws Exception {
+        for (WorkInfo info : workManager.getWorkInfosByTag(chainTag).get()) {
+            if (!info.getState().isFinished()) {
+                return false;
+            }
         }
+        return true;
     }
 }
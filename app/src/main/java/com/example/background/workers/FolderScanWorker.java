@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkContinuation;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.example.background.Constants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Worker that blurs the images of a watched folder that are new or changed since its last run.
+ * Takes KEY_WATCH_BUCKET_ID or KEY_WATCH_DIRECTORY, KEY_BLUR_RADIUS and optionally
+ * KEY_SCAN_BATCH_SIZE, and doesn't pass any output.
+ *
+ * MediaStore is only asked for images modified at or after the folder's watermark in
+ * {@link ProcessedIndex}, oldest first, and images the index already holds with the same
+ * modification time and size are skipped. At most one batch of images is enqueued per run, each
+ * image as a blur and a save of its own; the save records the image in the index once it
+ * succeeds. The watermark only moves up to the oldest image not yet saved, so an image whose
+ * blur or save failed or was cancelled is picked up again by the next scan. Each enqueued image
+ * counts an attempt in the index, and after MAX_ATTEMPTS failed ones the image is skipped like
+ * a saved one, so an image that can never be blurred does not keep the watermark, and with it
+ * every later scan, at its modification time.
+ *
+ * When more changes are waiting, a follow-up run is enqueued, which backs off until the batch
+ * before it has finished and carries on after the last image this run looked at, so a folder
+ * with thousands of new photos is worked through a batch at a time instead of flooding the
+ * queue, and images that keep failing are retried once per scan rather than by every follow-up.
+ */
+public class FolderScanWorker extends AsyncWorker {
+    public FolderScanWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    private static final String TAG = FolderScanWorker.class.getSimpleName();
+
+    private static final String BATCH_WORK_NAME = "folder_scan_batch";
+    private static final String CONTINUATION_WORK_NAME = "folder_scan_continuation";
+    // Modification time and MediaStore id of the last image the previous run looked at
+    private static final String KEY_RESUME_DATE_MODIFIED = "KEY_RESUME_DATE_MODIFIED";
+    private static final String KEY_RESUME_MEDIA_ID = "KEY_RESUME_MEDIA_ID";
+    // Batches an image may fail in before scans give up on it until it changes
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Constraints for scans and for the work they enqueue: they only run while the battery is
+     * not low and, where the platform can tell, while the device is idle
+     */
+    @NonNull
+    public static Constraints constraints() {
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiresBatteryNotLow(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            constraints.setRequiresDeviceIdle(true);
+        }
+        return constraints.build();
+    }
+
+    @Override
+    void onStart() throws Exception {
+        Context applicationContext = getApplicationContext();
+        WorkManager workManager = WorkManager.getInstance(applicationContext);
+
+        //The previous batch has to finish before this run adds another one
+        for (WorkInfo info : workManager.getWorkInfosForUniqueWork(BATCH_WORK_NAME).get()) {
+            if (!info.getState().isFinished()) {
+                Log.i(TAG, "Previous batch still running, trying again later");
+                finish(Result.retry());
+                return;
+            }
+        }
+
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.FOLDER_SCAN);
+        try {
+            scan(applicationContext, workManager);
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.FOLDER_SCAN, start, 0);
+        }
+    }
+
+    private void scan(Context applicationContext, WorkManager workManager) throws Exception {
+        String bucketId = getInputData().getString(Constants.KEY_WATCH_BUCKET_ID);
+        String directory = getInputData().getString(Constants.KEY_WATCH_DIRECTORY);
+        int batchSize = Math.max(1, getInputData().getInt(
+                Constants.KEY_SCAN_BATCH_SIZE, Constants.DEFAULT_SCAN_BATCH_SIZE));
+
+        //The folder names the watermark, so watching another folder starts from its beginning
+        String folder;
+        List<String> args = new ArrayList<>();
+        StringBuilder selection = new StringBuilder();
+        if (!TextUtils.isEmpty(bucketId)) {
+            folder = "bucket:" + bucketId;
+            selection.append(MediaStore.Images.Media.BUCKET_ID).append(" = ?");
+            args.add(bucketId);
+        } else if (!TextUtils.isEmpty(directory)) {
+            String prefix = new File(directory).getAbsolutePath() + File.separator;
+            folder = "directory:" + prefix;
+            //Compare a prefix rather than use LIKE, whose wildcards are common in file names
+            selection.append("substr(").append(MediaStore.Images.Media.DATA).append(", 1, ")
+                    .append(prefix.codePointCount(0, prefix.length())).append(") = ?");
+            args.add(prefix);
+        } else {
+            throw new IllegalArgumentException("No folder to watch");
+        }
+
+        //Skip this app's own saves, which may land in the watched folder
+        selection.append(" AND ").append(MediaStore.Images.Media.TITLE).append(" != ?");
+        args.add(SaveImageToFileWorker.TITLE);
+
+        ProcessedIndex index = ProcessedIndex.get(applicationContext);
+        long watermark = index.watermark(folder);
+        selection.append(" AND ").append(MediaStore.Images.Media.DATE_MODIFIED).append(" >= ?");
+        args.add(Long.toString(watermark));
+
+        //A follow-up carries on after the previous run, whose images have had their chance
+        boolean followUp = getTags().contains(CONTINUATION_WORK_NAME);
+        long resumeDate = getInputData().getLong(KEY_RESUME_DATE_MODIFIED, -1);
+        long resumeId = getInputData().getLong(KEY_RESUME_MEDIA_ID, -1);
+        if (followUp && resumeDate >= 0) {
+            selection.append(" AND (").append(MediaStore.Images.Media.DATE_MODIFIED)
+                    .append(" > ? OR (").append(MediaStore.Images.Media.DATE_MODIFIED)
+                    .append(" = ? AND ").append(MediaStore.Images.Media._ID).append(" > ?))");
+            args.add(Long.toString(resumeDate));
+            args.add(Long.toString(resumeDate));
+            args.add(Long.toString(resumeId));
+        }
+
+        List<ProcessedIndex.Entry> changed = new ArrayList<>();
+        int givenUp = 0;
+        ProcessedIndex.Entry last = null;
+        boolean more = false;
+        ContentResolver resolver = applicationContext.getContentResolver();
+        Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[] {
+                        MediaStore.Images.Media._ID,
+                        MediaStore.Images.Media.DATE_MODIFIED,
+                        MediaStore.Images.Media.SIZE
+                },
+                selection.toString(), args.toArray(new String[0]),
+                MediaStore.Images.Media.DATE_MODIFIED + " ASC, "
+                        + MediaStore.Images.Media._ID + " ASC");
+        if (cursor == null) {
+            throw new IllegalStateException("MediaStore query failed");
+        }
+        try {
+            //Rows come oldest first, so the watermark can move up to the oldest image not saved
+            //yet, or past every row read if all of them were; rows sharing its second are read
+            //again next time and skipped through the index. Images given up on count as saved.
+            while (cursor.moveToNext()) {
+                ProcessedIndex.Entry entry = new ProcessedIndex.Entry(
+                        cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+                if (!index.contains(entry)) {
+                    if (index.attempts(entry) >= MAX_ATTEMPTS) {
+                        Log.w(TAG, String.format("Gave up on image %d, last tried at %tc",
+                                entry.mediaId, index.lastAttempt(entry)));
+                        givenUp++;
+                    } else if (changed.size() == batchSize) {
+                        more = true;
+                        break;
+                    } else {
+                        changed.add(entry);
+                    }
+                }
+                last = entry;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!changed.isEmpty()) {
+            enqueueBatch(workManager, changed);
+            index.recordAttempts(changed, System.currentTimeMillis());
+        }
+        //A follow-up only sees images after the previous run's, so it leaves the watermark to
+        //the scans that start from it
+        if (!followUp && last != null) {
+            index.setWatermark(folder,
+                    changed.isEmpty() ? last.dateModified : changed.get(0).dateModified);
+        }
+        Log.i(TAG, String.format("Enqueued %d new or changed images of %s, skipped %d that kept "
+                + "failing", changed.size(), folder, givenUp));
+
+        if (more) {
+            continueAfter(workManager, last, followUp);
+        }
+        finish(Result.success());
+    }
+
+    /**
+     * Enqueues a follow-up scan starting after {@code last}. A follow-up appends the next one to
+     * its own unique work, which is still running; a scan leaves the work to a follow-up that is
+     * already queued and otherwise replaces the finished, or failed, previous ones.
+     */
+    private void continueAfter(WorkManager workManager, ProcessedIndex.Entry last,
+                               boolean followUp) throws Exception {
+        ExistingWorkPolicy policy;
+        if (followUp) {
+            policy = ExistingWorkPolicy.APPEND;
+        } else {
+            for (WorkInfo info
+                    : workManager.getWorkInfosForUniqueWork(CONTINUATION_WORK_NAME).get()) {
+                if (!info.getState().isFinished()) {
+                    return;
+                }
+            }
+            policy = ExistingWorkPolicy.REPLACE;
+        }
+        Data.Builder input = new Data.Builder().putAll(getInputData());
+        if (last != null) {
+            input.putLong(KEY_RESUME_DATE_MODIFIED, last.dateModified)
+                    .putLong(KEY_RESUME_MEDIA_ID, last.mediaId);
+        }
+        workManager.enqueueUniqueWork(CONTINUATION_WORK_NAME, policy,
+                new OneTimeWorkRequest.Builder(FolderScanWorker.class)
+                        .setConstraints(constraints())
+                        .addTag(CONTINUATION_WORK_NAME)
+                        .setInputData(input.build())
+                        .build());
+    }
+
+    /**
+     * Enqueues a cleanup followed by one blur and save per image, each image in a lane of its
+     * own so one failing does not hold up the others. Each save is told which image it saves,
+     * so it can record the image as processed.
+     */
+    private void enqueueBatch(WorkManager workManager, List<ProcessedIndex.Entry> entries) {
+        float radius = getInputData().getFloat(Constants.KEY_BLUR_RADIUS, WorkerUtils.BLUR_RADIUS);
+        Constraints constraints = constraints();
+        //Every lane's temporary files stay until the whole batch is over
+        String chainTag = Constants.TAG_CHAIN_PREFIX + UUID.randomUUID();
+
+        //The previous batch was seen to be over before the scan, so replacing it loses nothing;
+        //KEEP would drop this batch if a concurrent scan had just enqueued one, and APPEND
+        //would fail it along with any failed lane of the previous batch. Images of a batch
+        //replaced by a concurrent scan are not recorded and are found again later.
+        WorkContinuation cleanup = workManager.beginUniqueWork(
+                BATCH_WORK_NAME,
+                ExistingWorkPolicy.REPLACE,
+                new OneTimeWorkRequest.Builder(CleanupWorker.class).addTag(chainTag).build());
+
+        List<WorkContinuation> lanes = new ArrayList<>(entries.size());
+        for (ProcessedIndex.Entry entry : entries) {
+            Uri imageUri = ContentUris.withAppendedId(
+                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI, entry.mediaId);
+            Data blurInput = new Data.Builder()
+                    .putString(Constants.KEY_IMAGE_URI, imageUri.toString())
+                    .putFloat(Constants.KEY_BLUR_RADIUS, radius)
+                    .build();
+            OneTimeWorkRequest blurRequest = new OneTimeWorkRequest.Builder(BlurWorker.class)
+                    .setConstraints(constraints)
+                    .addTag(chainTag)
+                    .setInputData(blurInput)
+                    .build();
+            //The save's own input is merged with the blur's output
+            Data saveInput = new Data.Builder()
+                    .putLong(Constants.KEY_SCAN_MEDIA_ID, entry.mediaId)
+                    .putLong(Constants.KEY_SCAN_DATE_MODIFIED, entry.dateModified)
+                    .putLong(Constants.KEY_SCAN_SIZE, entry.size)
+                    .build();
+            OneTimeWorkRequest saveRequest =
+                    new OneTimeWorkRequest.Builder(SaveImageToFileWorker.class)
+                            .setConstraints(constraints)
+                            .addTag(chainTag)
+                            .setInputData(saveInput)
+                            .build();
+            lanes.add(cleanup.then(blurRequest).then(saveRequest));
+        }
+
+        //Enqueuing the combination enqueues every lane, and the shared cleanup only once
+        if (lanes.size() == 1) {
+            lanes.get(0).enqueue();
+        } else {
+            WorkContinuation.combine(lanes).enqueue();
+        }
+    }
+}
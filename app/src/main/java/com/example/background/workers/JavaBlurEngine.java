@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link BlurEngine} backed by {@link GaussianBlur} for small radii and {@link BoxBlur} for the
+ * rest, either on the calling thread only or split across the fork/join pool.
+ */
+final class JavaBlurEngine implements BlurEngine {
+
+    static final String NAME_SCALAR = "java-scalar";
+    static final String NAME_PARALLEL = "java-parallel";
+
+    private final boolean mParallel;
+
+    private JavaBlurEngine(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Engine that blurs on the calling thread
+     */
+    static JavaBlurEngine scalar() {
+        return new JavaBlurEngine(false);
+    }
+
+    /**
+     * Engine that splits the blur across one thread per core
+     */
+    static JavaBlurEngine parallel() {
+        return new JavaBlurEngine(true);
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return mParallel ? NAME_PARALLEL : NAME_SCALAR;
+    }
+
+    @Override
+    public void blur(@NonNull Bitmap input, @NonNull Bitmap output, float radius,
+                     @Nullable ProgressReporter.Stage progress) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int[] pixels = PixelBuffers.acquire(width * height);
+        int[] blurred = PixelBuffers.acquire(width * height);
+        try {
+            input.getPixels(pixels, 0, width, 0, 0, width, height);
+            ForkJoinPool pool = mParallel ? GaussianBlur.sharedPool() : null;
+            if (BoxBlur.preferredFor(radius)) {
+                BoxBlur.blur(pixels, blurred, width, height, radius, pool, progress);
+            } else {
+                GaussianBlur.blur(pixels, blurred, width, height, radius, pool, progress);
+            }
+            output.setPixels(blurred, 0, width, 0, 0, width, height);
+        } finally {
+            PixelBuffers.release(pixels);
+            PixelBuffers.release(blurred);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of reusable objects grouped by key and capped by total size in bytes.
+ *
+ * Released objects sit in the pool until someone acquires an object with the same key, or until
+ * the pool grows past its byte limit, at which point the least recently released objects are
+ * evicted. Hit, miss and eviction counts are kept so the limit can be sized from real runs.
+ *
+ * All methods are thread safe.
+ */
+class LruPool<K, V> {
+
+    /**
+     * Called, outside of the pool's lock, for every object dropped from the pool.
+     */
+    interface Evictor<V> {
+        void onEvicted(V value);
+    }
+
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final long bytes;
+
+        Entry(K key, V value, long bytes) {
+            this.key = key;
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final Evictor<V> mEvictor;
+
+    private final Map<K, ArrayDeque<Entry<K, V>>> mByKey = new HashMap<>();
+    // Entries in release order; the head is evicted first
+    private final LinkedHashSet<Entry<K, V>> mLru = new LinkedHashSet<>();
+
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * @param maxBytes Limit on the total size of the pooled objects
+     * @param evictor Callback for evicted objects, or null
+     */
+    LruPool(long maxBytes, Evictor<V> evictor) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+        mEvictor = evictor;
+    }
+
+    /**
+     * Takes an object with the given key out of the pool.
+     * @return The most recently released matching object, or null on a miss
+     */
+    synchronized V acquire(K key) {
+        ArrayDeque<Entry<K, V>> entries = mByKey.get(key);
+        Entry<K, V> entry = entries != null ? entries.pollLast() : null;
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mLru.remove(entry);
+        mBytes -= entry.bytes;
+        mHits++;
+        return entry.value;
+    }
+
+    /**
+     * Returns an object to the pool, evicting older objects if the pool is over its limit.
+     * @param bytes Size of the object as counted against the limit
+     */
+    void release(K key, V value, long bytes) {
+        List<V> evicted = null;
+        synchronized (this) {
+            if (bytes > mMaxBytes) {
+                mEvictions++;
+                evicted = new ArrayList<>(1);
+                evicted.add(value);
+            } else {
+                Entry<K, V> entry = new Entry<>(key, value, bytes);
+                ArrayDeque<Entry<K, V>> entries = mByKey.get(key);
+                if (entries == null) {
+                    entries = new ArrayDeque<>();
+                    mByKey.put(key, entries);
+                }
+                entries.addLast(entry);
+                mLru.add(entry);
+                mBytes += bytes;
+                evicted = trimLocked(mMaxBytes);
+            }
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Evicts everything in the pool.
+     */
+    void clear() {
+        List<V> evicted;
+        synchronized (this) {
+            evicted = trimLocked(0);
+        }
+        notifyEvicted(evicted);
+    }
+
+    synchronized long sizeBytes() {
+        return mBytes;
+    }
+
+    long maxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized long hitCount() {
+        return mHits;
+    }
+
+    synchronized long missCount() {
+        return mMisses;
+    }
+
+    synchronized long evictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("LruPool[size=%d/%d bytes, hits=%d, misses=%d, evictions=%d]",
+                mBytes, mMaxBytes, mHits, mMisses, mEvictions);
+    }
+
+    private List<V> trimLocked(long maxBytes) {
+        List<V> evicted = null;
+        Iterator<Entry<K, V>> it = mLru.iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Entry<K, V> entry = it.next();
+            it.remove();
+            ArrayDeque<Entry<K, V>> entries = mByKey.get(entry.key);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mByKey.remove(entry.key);
+            }
+            mBytes -= entry.bytes;
+            mEvictions++;
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(entry.value);
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<V> evicted) {
+        if (evicted == null || mEvictor == null) {
+            return;
+        }
+        for (V value : evicted) {
+            mEvictor.onEvicted(value);
+        }
+    }
+}
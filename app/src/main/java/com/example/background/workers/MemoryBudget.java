@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Admission control for blurs that run at the same time. Each blur estimates its peak heap use
+ * before it decodes anything and is admitted only while the estimates of every admitted blur fit
+ * in a share of the heap. Blurs that do not fit wait in arrival order, without holding a thread.
+ *
+ * A blur that needs more than the whole share on its own is admitted once nothing else is, so
+ * it runs alone rather than never. Everything admitted must be released again.
+ */
+final class MemoryBudget {
+
+    // Share of the heap admitted blurs may use together when the work does not say otherwise
+    static final float DEFAULT_HEAP_SHARE = 0.5f;
+
+    private static final class Waiter {
+        final long bytes;
+        final long limit;
+        final Runnable onAdmitted;
+
+        Waiter(long bytes, long limit, Runnable onAdmitted) {
+            this.bytes = bytes;
+            this.limit = limit;
+            this.onAdmitted = onAdmitted;
+        }
+    }
+
+    private static final ArrayDeque<Waiter> sWaiting = new ArrayDeque<>();
+    private static long sAdmittedBytes;
+
+    /**
+     * Runs {@code onAdmitted} once {@code bytes} fit next to the blurs already admitted. It runs
+     * on the calling thread if they fit straight away, and otherwise on the thread whose
+     * {@link #release(long)} made room, so it should only hand the work on to an executor.
+     * @param heapShare Share of the heap, from 0 to 1, the admitted blurs may use together
+     */
+    static void acquire(long bytes, float heapShare, Runnable onAdmitted) {
+        long limit = (long) (Runtime.getRuntime().maxMemory() * heapShare);
+        List<Runnable> admitted;
+        synchronized (MemoryBudget.class) {
+            sWaiting.add(new Waiter(bytes, limit, onAdmitted));
+            admitted = admitWaiting();
+        }
+        runAll(admitted);
+    }
+
+    /**
+     * Gives back {@code bytes} granted by {@link #acquire(long, float, Runnable)} and admits
+     * whoever now fits
+     */
+    static void release(long bytes) {
+        List<Runnable> admitted;
+        synchronized (MemoryBudget.class) {
+            sAdmittedBytes -= bytes;
+            admitted = admitWaiting();
+        }
+        runAll(admitted);
+    }
+
+    /**
+     * Estimated bytes held by the blurs currently admitted
+     */
+    static synchronized long admittedBytes() {
+        return sAdmittedBytes;
+    }
+
+    /**
+     * Number of blurs waiting to be admitted
+     */
+    static synchronized int waiting() {
+        return sWaiting.size();
+    }
+
+    // Admits from the head of the queue only, so a large blur is not overtaken forever
+    private static List<Runnable> admitWaiting() {
+        List<Runnable> admitted = new ArrayList<>();
+        Waiter head;
+        while ((head = sWaiting.peek()) != null
+                && (sAdmittedBytes == 0 || sAdmittedBytes + head.bytes <= head.limit)) {
+            sWaiting.poll();
+            sAdmittedBytes += head.bytes;
+            admitted.add(head.onAdmitted);
+        }
+        return admitted;
+    }
+
+    private static void runAll(List<Runnable> admitted) {
+        for (Runnable onAdmitted : admitted) {
+            onAdmitted.run();
+        }
+    }
+
+    private MemoryBudget() {
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+/**
+ * File formats a BlurWorker can write its output in.
+ *
+ * Intermediate outputs are only read back by the next BlurWorker, so they default to
+ * {@link #RAW}, which costs nothing to encode or decode. Final outputs are kept in the blur cache
+ * and read by the save step, so they default to {@link #WEBP_LOSSLESS}, which is lossless like
+ * PNG but noticeably smaller on smooth, blurred images.
+ */
+enum OutputCodec {
+    /** Uncompressed {@link RawImageFile}; readable only by this app */
+    RAW(RawImageFile.EXTENSION, null),
+    /** PNG at the fastest deflate level */
+    PNG_FAST(".png", "image/png"),
+    /** PNG at the platform's default deflate level */
+    PNG(".png", "image/png"),
+    /** Lossless WebP; PNG on releases before Android 10, where WebP is always lossy */
+    WEBP_LOSSLESS(".webp", "image/webp"),
+    /** JPEG at the requested quality; drops any alpha channel */
+    JPEG(".jpg", "image/jpeg");
+
+    static final OutputCodec DEFAULT_INTERMEDIATE = RAW;
+    static final OutputCodec DEFAULT_FINAL = WEBP_LOSSLESS;
+    static final int DEFAULT_QUALITY = 90;
+
+    final String extension;
+    // MIME type other apps know the format by, or null for the app's own raw format
+    final String mimeType;
+
+    OutputCodec(String extension, String mimeType) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Looks a codec up by name, falling back to {@code defaultCodec} for null or unknown names
+     */
+    static OutputCodec fromName(String name, OutputCodec defaultCodec) {
+        if (name != null) {
+            for (OutputCodec codec : values()) {
+                if (codec.name().equals(name)) {
+                    return codec;
+                }
+            }
+        }
+        return defaultCodec;
+    }
+
+    /**
+     * Returns the first codec writing files with the extension of {@code fileName}, or null if
+     * none does. Codecs sharing an extension also share a MIME type.
+     */
+    static OutputCodec forFileName(String fileName) {
+        for (OutputCodec codec : values()) {
+            if (fileName.endsWith(codec.extension)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
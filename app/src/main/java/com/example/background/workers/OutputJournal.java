@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which temporary files each chain of work created, so cleanup can delete exactly the
+ * files of chains that are over instead of sweeping the whole output directory.
+ *
+ * The journal is a text file with one line per file: the chain's tag, the time the file was
+ * recorded and the file's name. New files are appended; removing entries rewrites the file from
+ * the copy held in memory, which is loaded once per process and grouped by chain, so cleanup can
+ * walk it a few chains at a time without copying all of it.
+ */
+final class OutputJournal {
+
+    static final String FILE_NAME = "output_journal";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, OutputJournal> sInstances = new HashMap<>();
+
+    static final class Entry {
+        final String chain;
+        final long created;
+        final String fileName;
+
+        Entry(String chain, long created, String fileName) {
+            this.chain = chain;
+            this.created = created;
+            this.fileName = fileName;
+        }
+    }
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    // Chains in the order they were first recorded
+    private final LinkedHashMap<String, List<Entry>> mChains = new LinkedHashMap<>();
+
+    /**
+     * Returns the journal of the files in {@code directory}, loading it on first use.
+     */
+    static synchronized OutputJournal open(File directory) {
+        String path = directory.getAbsolutePath();
+        OutputJournal journal = sInstances.get(path);
+        if (journal == null) {
+            journal = new OutputJournal(directory);
+            sInstances.put(path, journal);
+        }
+        return journal;
+    }
+
+    private OutputJournal(File directory) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Whether {@code file} is the journal itself rather than a recorded output
+     */
+    static boolean isJournalFile(File file) {
+        return file.getName().startsWith(FILE_NAME);
+    }
+
+    /**
+     * Notes that {@code file}, which must be in this journal's directory, belongs to
+     * {@code chain}
+     */
+    synchronized void record(String chain, File file) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        Entry entry = new Entry(chain, System.currentTimeMillis(), file.getName());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mJournalFile, true), UTF_8);
+        try {
+            write(writer, entry);
+        } finally {
+            writer.close();
+        }
+        add(entry);
+    }
+
+    /**
+     * Returns up to {@code max} chains in the order they were first recorded, starting at
+     * {@code from} if it is still journaled and at the first chain otherwise
+     */
+    synchronized List<String> chains(String from, int max) {
+        List<String> chains = new ArrayList<>(Math.min(max, mChains.size()));
+        boolean skipping = from != null && mChains.containsKey(from);
+        for (String chain : mChains.keySet()) {
+            if (skipping && !chain.equals(from)) {
+                continue;
+            }
+            skipping = false;
+            if (chains.size() == max) {
+                break;
+            }
+            chains.add(chain);
+        }
+        return chains;
+    }
+
+    /**
+     * Returns the entries of {@code chain}, empty if it has none
+     */
+    synchronized List<Entry> entries(String chain) {
+        List<Entry> entries = mChains.get(chain);
+        return entries != null ? new ArrayList<>(entries) : new ArrayList<Entry>();
+    }
+
+    /**
+     * Returns the names of every recorded file
+     */
+    synchronized Set<String> fileNames() {
+        Set<String> names = new HashSet<>();
+        for (List<Entry> entries : mChains.values()) {
+            for (Entry entry : entries) {
+                names.add(entry.fileName);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Deletes the files of {@code entries} and forgets them
+     * @return Number of files that existed and were deleted
+     */
+    synchronized int delete(Collection<Entry> entries) throws IOException {
+        int deleted = 0;
+        for (Entry entry : entries) {
+            if (new File(mDirectory, entry.fileName).delete()) {
+                deleted++;
+            }
+        }
+        boolean removed = false;
+        for (Entry entry : entries) {
+            List<Entry> chain = mChains.get(entry.chain);
+            if (chain != null && chain.remove(entry)) {
+                removed = true;
+                if (chain.isEmpty()) {
+                    mChains.remove(entry.chain);
+                }
+            }
+        }
+        if (removed) {
+            save();
+        }
+        return deleted;
+    }
+
+    private void add(Entry entry) {
+        List<Entry> entries = mChains.get(entry.chain);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            mChains.put(entry.chain, entries);
+        }
+        entries.add(entry);
+    }
+
+    private void load() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mJournalFile), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3) {
+                    add(new Entry(parts[0], Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The files a damaged journal described are left for the age based sweep
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        File temp = new File(mDirectory, FILE_NAME + ".tmp");
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), UTF_8));
+        try {
+            for (List<Entry> entries : mChains.values()) {
+                for (Entry entry : entries) {
+                    write(writer, entry);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(mJournalFile)) {
+            throw new IOException("Unable to replace " + mJournalFile);
+        }
+    }
+
+    private static void write(Writer writer, Entry entry) throws IOException {
+        writer.write(entry.chain + " " + entry.created + " " + entry.fileName + "\n");
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+/**
+ * Process-wide pool of int[] pixel buffers, keyed by length.
+ *
+ * Every blur needs a source, a scratch and a destination buffer the size of the image, which on a
+ * multi-level chain or a batch adds up to a lot of short-lived garbage. Buffers returned here are
+ * handed out again to the next image of the same size. Contents are not cleared.
+ */
+final class PixelBuffers {
+
+    // Capped at an eighth of the heap
+    private static final LruPool<Integer, int[]> POOL =
+            new LruPool<>(Runtime.getRuntime().maxMemory() / 8, null);
+
+    /**
+     * Returns a buffer of exactly {@code length} ints, reused if possible.
+     */
+    static int[] acquire(int length) {
+        int[] buffer = POOL.acquire(length);
+        return buffer != null ? buffer : new int[length];
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch it afterwards.
+     */
+    static void release(int[] buffer) {
+        if (buffer != null) {
+            POOL.release(buffer.length, buffer, 4L * buffer.length);
+        }
+    }
+
+    static LruPool<Integer, int[]> pool() {
+        return POOL;
+    }
+
+    private PixelBuffers() {
+    }
+}
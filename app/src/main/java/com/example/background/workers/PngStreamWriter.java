@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG a few rows at a time, so an image can be encoded without ever holding all of it
+ * in memory.
+ *
+ * Pixels come in as unpremultiplied packed ARGB, the layout Bitmap.getPixels produces, and are
+ * written as 8-bit RGBA (or RGB when the image has no alpha) with the Sub filter on every row.
+ * Compressed data is flushed into IDAT chunks as it is produced.
+ */
+final class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Size at which buffered compressed data is written out as an IDAT chunk
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int FILTER_SUB = 1;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mChannels;
+    private final Deflater mDeflater;
+    private final ChunkStream mChunks = new ChunkStream();
+    private final DeflaterOutputStream mDeflated;
+    private final byte[] mRow;
+    private int mRowsWritten;
+    private boolean mClosed;
+
+    /**
+     * @param out Stream to write to; closed when this writer is closed
+     * @param hasAlpha Whether to keep the alpha channel
+     * @param level Deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    PngStreamWriter(OutputStream out, int width, int height, boolean hasAlpha, int level)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mChannels = hasAlpha ? 4 : 3;
+        mDeflater = new Deflater(level);
+        mDeflated = new DeflaterOutputStream(mChunks, mDeflater, CHUNK_SIZE);
+        mRow = new byte[1 + width * mChannels];
+
+        mOut.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        writeInt(header, width);
+        writeInt(header, height);
+        header.write(8); // bit depth
+        header.write(hasAlpha ? 6 : 2); // colour type RGBA or RGB
+        header.write(0); // compression
+        header.write(0); // filter method
+        header.write(0); // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Appends {@code rows} full rows of pixels
+     * @param pixels Packed ARGB pixels
+     * @param offset Index of the first pixel of the first row
+     */
+    void writeRows(int[] pixels, int offset, int rows) throws IOException {
+        if (mRowsWritten + rows > mHeight) {
+            throw new IllegalStateException("Too many rows for a " + mHeight + " row image");
+        }
+        byte[] row = mRow;
+        int channels = mChannels;
+        row[0] = FILTER_SUB;
+        for (int y = 0; y < rows; y++) {
+            int index = offset + y * mWidth;
+            int pr = 0, pg = 0, pb = 0, pa = 0;
+            int out = 1;
+            for (int x = 0; x < mWidth; x++) {
+                int p = pixels[index + x];
+                int a = p >>> 24;
+                int r = (p >> 16) & 0xff;
+                int g = (p >> 8) & 0xff;
+                int b = p & 0xff;
+                row[out++] = (byte) (r - pr);
+                row[out++] = (byte) (g - pg);
+                row[out++] = (byte) (b - pb);
+                if (channels == 4) {
+                    row[out++] = (byte) (a - pa);
+                }
+                pr = r;
+                pg = g;
+                pb = b;
+                pa = a;
+            }
+            mDeflated.write(row, 0, row.length);
+        }
+        mRowsWritten += rows;
+    }
+
+    /**
+     * Finishes the image and closes the underlying stream. Fails if not every row was written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mRowsWritten != mHeight) {
+                throw new IOException("Only " + mRowsWritten + " of " + mHeight + " rows written");
+            }
+            mDeflated.finish();
+            mChunks.flushChunk();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        writeInt(mOut, length);
+        mOut.write(typeBytes);
+        mOut.write(data, 0, length);
+        writeInt(mOut, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Collects deflated bytes and turns them into IDAT chunks of about {@link #CHUNK_SIZE}.
+     */
+    private final class ChunkStream extends OutputStream {
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushChunk();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBuffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (mCount > 0) {
+                writeChunk("IDAT", mBuffer, mCount);
+                mCount = 0;
+            }
+        }
+    }
+}
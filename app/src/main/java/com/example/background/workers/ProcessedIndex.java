@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * Persistent record of the images {@link FolderScanWorker} found whose blur has been saved.
+ *
+ * Entries are keyed by MediaStore id and remember the modification time and size the image had
+ * when it was processed, so an image that is edited later counts as new again. An image is only
+ * recorded by its {@link SaveImageToFileWorker} once the save succeeds, so images whose blur or
+ * save failed or was cancelled are found again by the next scan. Each watched folder also has a
+ * watermark, the modification time below which every image has been saved, so the next scan
+ * only asks MediaStore for images at or after it. Lookups are by primary key, so neither
+ * step reads the whole index, and a scan costs time in proportion to the images that changed
+ * rather than to the size of the folder.
+ *
+ * The index also counts the batches each unsaved image was enqueued in, and when it was last
+ * enqueued. A scan only enqueues a batch once the previous one is over, so every attempt a
+ * scan finds without a save has failed; the scan gives up on images that failed too often, so
+ * one that can never be decoded does not hold the watermark back for good. The count belongs
+ * to a modification time and size, so editing the image starts it again.
+ */
+final class ProcessedIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "processed_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_PROCESSED = "processed";
+    private static final String TABLE_WATERMARKS = "watermarks";
+    private static final String TABLE_ATTEMPTS = "attempts";
+    private static final String COLUMN_MEDIA_ID = "media_id";
+    private static final String COLUMN_DATE_MODIFIED = "date_modified";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_FOLDER = "folder";
+    private static final String COLUMN_WATERMARK = "watermark";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    // Wall clock time in milliseconds
+    private static final String COLUMN_LAST_ATTEMPT = "last_attempt";
+
+    private static ProcessedIndex sInstance;
+
+    /**
+     * One image as MediaStore describes it
+     */
+    static final class Entry {
+        final long mediaId;
+        // Seconds, as in MediaStore's DATE_MODIFIED
+        final long dateModified;
+        final long size;
+
+        Entry(long mediaId, long dateModified, long size) {
+            this.mediaId = mediaId;
+            this.dateModified = dateModified;
+            this.size = size;
+        }
+    }
+
+    static synchronized ProcessedIndex get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ProcessedIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ProcessedIndex(Context applicationContext) {
+        super(applicationContext, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PROCESSED + " ("
+                + COLUMN_MEDIA_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_WATERMARKS + " ("
+                + COLUMN_FOLDER + " TEXT PRIMARY KEY, "
+                + COLUMN_WATERMARK + " INTEGER NOT NULL)");
+        createAttempts(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createAttempts(db);
+        }
+    }
+
+    private static void createAttempts(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ATTEMPTS + " ("
+                + COLUMN_MEDIA_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL, "
+                + COLUMN_LAST_ATTEMPT + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Latest modification time, in seconds, that scans of {@code folder} have got through, or 0
+     * before the first scan
+     */
+    @WorkerThread
+    long watermark(@NonNull String folder) {
+        Cursor cursor = getReadableDatabase().query(TABLE_WATERMARKS,
+                new String[] {COLUMN_WATERMARK}, COLUMN_FOLDER + " = ?", new String[] {folder},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Whether {@code entry} was processed with its current modification time and size
+     */
+    @WorkerThread
+    boolean contains(@NonNull Entry entry) {
+        Cursor cursor = getReadableDatabase().query(TABLE_PROCESSED,
+                new String[] {COLUMN_DATE_MODIFIED, COLUMN_SIZE},
+                COLUMN_MEDIA_ID + " = ?", new String[] {Long.toString(entry.mediaId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() && cursor.getLong(0) == entry.dateModified
+                    && cursor.getLong(1) == entry.size;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Number of batches {@code entry} was enqueued in with its current modification time and
+     * size without being saved
+     */
+    @WorkerThread
+    int attempts(@NonNull Entry entry) {
+        return attempts(getReadableDatabase(), entry);
+    }
+
+    private static int attempts(SQLiteDatabase db, Entry entry) {
+        Cursor cursor = db.query(TABLE_ATTEMPTS,
+                new String[] {COLUMN_DATE_MODIFIED, COLUMN_SIZE, COLUMN_ATTEMPTS},
+                COLUMN_MEDIA_ID + " = ?", new String[] {Long.toString(entry.mediaId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() && cursor.getLong(0) == entry.dateModified
+                    && cursor.getLong(1) == entry.size ? cursor.getInt(2) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Counts one more attempt for each of {@code entries}, made at {@code timeMillis}
+     */
+    @WorkerThread
+    void recordAttempts(@NonNull List<Entry> entries, long timeMillis) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                ContentValues values = new ContentValues(5);
+                values.put(COLUMN_MEDIA_ID, entry.mediaId);
+                values.put(COLUMN_DATE_MODIFIED, entry.dateModified);
+                values.put(COLUMN_SIZE, entry.size);
+                values.put(COLUMN_ATTEMPTS, attempts(db, entry) + 1);
+                values.put(COLUMN_LAST_ATTEMPT, timeMillis);
+                db.insertWithOnConflict(TABLE_ATTEMPTS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Wall clock time in milliseconds {@code entry} was last enqueued, or 0 if it never was
+     * with its current modification time and size
+     */
+    @WorkerThread
+    long lastAttempt(@NonNull Entry entry) {
+        Cursor cursor = getReadableDatabase().query(TABLE_ATTEMPTS,
+                new String[] {COLUMN_DATE_MODIFIED, COLUMN_SIZE, COLUMN_LAST_ATTEMPT},
+                COLUMN_MEDIA_ID + " = ?", new String[] {Long.toString(entry.mediaId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() && cursor.getLong(0) == entry.dateModified
+                    && cursor.getLong(1) == entry.size ? cursor.getLong(2) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records {@code entry} as processed, dropping the attempts that led up to it
+     */
+    @WorkerThread
+    void record(@NonNull Entry entry) {
+        ContentValues values = new ContentValues(3);
+        values.put(COLUMN_MEDIA_ID, entry.mediaId);
+        values.put(COLUMN_DATE_MODIFIED, entry.dateModified);
+        values.put(COLUMN_SIZE, entry.size);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insertWithOnConflict(TABLE_PROCESSED, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            db.delete(TABLE_ATTEMPTS, COLUMN_MEDIA_ID + " = ?",
+                    new String[] {Long.toString(entry.mediaId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Moves the watermark of {@code folder} to {@code watermark}
+     */
+    @WorkerThread
+    void setWatermark(@NonNull String folder, long watermark) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_FOLDER, folder);
+        values.put(COLUMN_WATERMARK, watermark);
+        getWritableDatabase().insertWithOnConflict(TABLE_WATERMARKS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
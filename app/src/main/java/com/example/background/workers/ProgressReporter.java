@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces fine-grained progress from the blur and encode loops into at most a few updates per
+ * second.
+ *
+ * Every update a worker publishes is a WorkManager database write plus a LiveData refresh in the
+ * UI, so reporting each finished row directly would flood both. Values reported while the rate
+ * limit is in effect are held back and only the latest is kept; {@link #finish()} always
+ * publishes 100. Progress never goes backwards. Safe to call from several threads.
+ *
+ * The loops that report progress are also the ones worth interrupting, so the reporter doubles
+ * as their cancellation signal: once {@link #cancel()} is called, advancing any stage throws
+ * {@link CancellationException} and the loop stops at its next row or strip boundary.
+ */
+final class ProgressReporter {
+
+    /**
+     * Receives the coalesced progress, from 0 to 100
+     */
+    interface Listener {
+        void onProgress(int percent);
+    }
+
+    private final Listener mListener;
+    private final long mMinIntervalNanos;
+    private int mPublished = -1;
+    private int mPending = -1;
+    private long mLastPublishNanos;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param maxUpdatesPerSecond Upper bound on calls to the listener, not counting the last one
+     */
+    ProgressReporter(Listener listener, int maxUpdatesPerSecond) {
+        if (maxUpdatesPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "maxUpdatesPerSecond must be positive: " + maxUpdatesPerSecond);
+        }
+        mListener = listener;
+        mMinIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxUpdatesPerSecond;
+    }
+
+    /**
+     * Reports overall progress; published now if the rate limit allows, otherwise held back
+     */
+    synchronized void report(int percent) {
+        percent = Math.max(0, Math.min(100, percent));
+        if (percent <= mPublished || percent <= mPending) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (mPublished >= 0 && now - mLastPublishNanos < mMinIntervalNanos) {
+            mPending = percent;
+            return;
+        }
+        publish(percent, now);
+    }
+
+    /**
+     * Publishes 100 regardless of the rate limit
+     */
+    synchronized void finish() {
+        if (mPublished < 100) {
+            publish(100, System.nanoTime());
+        }
+    }
+
+    /**
+     * Makes every stage of this reporter throw from its next {@link Stage#advance(long)}
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @throws CancellationException if {@link #cancel()} has been called
+     */
+    void throwIfCancelled() {
+        if (mCancelled) {
+            throw new CancellationException("Work was stopped");
+        }
+    }
+
+    /**
+     * Returns a stage covering {@code from} to {@code to} percent of the overall progress and
+     * made of {@code totalUnits} units of work, such as rows
+     */
+    Stage stage(int from, int to, long totalUnits) {
+        return new Stage(this, from, to, totalUnits);
+    }
+
+    private void publish(int percent, long now) {
+        mPublished = percent;
+        mPending = -1;
+        mLastPublishNanos = now;
+        mListener.onProgress(percent);
+    }
+
+    /**
+     * A slice of the overall progress that loops advance in their own units of work
+     */
+    static final class Stage {
+        private final ProgressReporter mReporter;
+        private final int mFrom;
+        private final int mTo;
+        private final long mTotal;
+        private final AtomicLong mDone = new AtomicLong();
+
+        private Stage(ProgressReporter reporter, int from, int to, long total) {
+            mReporter = reporter;
+            mFrom = from;
+            mTo = to;
+            mTotal = Math.max(1, total);
+        }
+
+        /**
+         * Marks {@code units} more units of work as done
+         * @throws CancellationException if the reporter has been cancelled
+         */
+        void advance(long units) {
+            mReporter.throwIfCancelled();
+            long done = Math.min(mTotal, mDone.addAndGet(units));
+            mReporter.report(mFrom + (int) ((mTo - mFrom) * done / mTotal));
+        }
+
+        /**
+         * @throws CancellationException if the reporter has been cancelled
+         */
+        void throwIfCancelled() {
+            mReporter.throwIfCancelled();
+        }
+
+        /**
+         * Marks the whole stage as done
+         */
+        void complete() {
+            mDone.set(mTotal);
+            mReporter.report(mTo);
+        }
+    }
+}
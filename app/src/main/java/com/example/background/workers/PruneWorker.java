@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Operation;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.example.background.Constants;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Worker that prunes finished work from WorkManager's database.
+ * Meant to run as periodic work. Every chain leaves all of its steps behind once it finishes, so
+ * without pruning each query by tag, and each LiveData built on one, keeps growing with every
+ * image ever blurred. Work still referenced by unfinished work is kept.
+ *
+ * It also deletes the temporary files no chain got to journal, such as partial outputs of a
+ * killed process, once they are older than KEY_MAX_TEMP_AGE_MILLIS. Journaled files are left to
+ * {@link CleanupWorker}, which deletes them once their chain is over.
+ */
+public class PruneWorker extends AsyncWorker {
+    public PruneWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    private static final String TAG = PruneWorker.class.getSimpleName();
+
+    @Override
+    void onStart() {
+        final ListenableFuture<Operation.State.SUCCESS> result =
+                WorkManager.getInstance(getApplicationContext()).pruneWork().getResult();
+        result.addListener(() -> run(WorkerExecutors.io(), () -> {
+            //Throws if the prune failed, which fails this run; the next period tries again
+            result.get();
+            Log.i(TAG, "Pruned finished work");
+            deleteUnjournaledFiles();
+            finish(Result.success());
+        }), WorkerExecutors.io());
+    }
+
+    /**
+     * Deletes files in the output directory that are not journaled and were last modified more
+     * than the maximum temporary file age ago
+     */
+    private void deleteUnjournaledFiles() {
+        Context applicationContext = getApplicationContext();
+        File directory = new File(applicationContext.getFilesDir(), Constants.OUTPUT_PATH);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> journaled = WorkerUtils.getOutputJournal(applicationContext).fileNames();
+        long cutoff = System.currentTimeMillis() - getInputData().getLong(
+                Constants.KEY_MAX_TEMP_AGE_MILLIS, Constants.DEFAULT_MAX_TEMP_AGE_MILLIS);
+        int deleted = 0;
+        for (File file : files) {
+            if (!OutputJournal.isJournalFile(file) && !journaled.contains(file.getName())
+                    && file.isFile() && file.lastModified() < cutoff && file.delete()) {
+                deleted++;
+            }
+        }
+        Log.i(TAG, String.format("Deleted %d unjournaled temporary files", deleted));
+    }
+}
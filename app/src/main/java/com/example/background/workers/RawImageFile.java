@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Uncompressed image format used to hand pixels from one worker in a chain to the next.
+ *
+ * The file is a fixed header (magic, version, width, height, config) followed by the pixels as
+ * packed ARGB ints in row-major order. Both directions go through a memory-mapped FileChannel so
+ * a handoff costs one copy of the pixels and no compression at all. Images only get encoded to a
+ * real format when they leave the chain.
+ *
+ * One mapping holds at most Integer.MAX_VALUE bytes. Whole-image reads and writes fail with an
+ * IOException beyond that; {@link Writer} and {@link #readRows} map one strip at a time, so the
+ * tiled path handles files of any size.
+ */
+final class RawImageFile {
+
+    static final String EXTENSION = ".raw";
+
+    // Config codes stored in the header; the pixels themselves are always packed ARGB
+    static final int CONFIG_ARGB_8888 = 1;
+    static final int CONFIG_RGB_565 = 2;
+
+    private static final int MAGIC = 0x424c5257; // "BLRW"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 5 * 4;
+
+    // Most pixels that fit in one mapping
+    private static final long MAX_MAPPED_PIXELS = (Integer.MAX_VALUE - HEADER_SIZE) / 4;
+
+    // The header is big-endian; pixels use little-endian so the copy is a straight memcpy on
+    // every ABI we ship
+    private static final ByteOrder PIXEL_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Dimensions and config of a raw image file.
+     */
+    static final class Header {
+        final int width;
+        final int height;
+        final int config;
+
+        Header(int width, int height, int config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+    }
+
+    /**
+     * Writes pixels to {@code file}, replacing any previous content.
+     * @param pixels Packed ARGB pixels, at least width * height long
+     */
+    static void write(File file, int[] pixels, int width, int height, int config)
+            throws IOException {
+        long count = (long) width * height;
+        if (width <= 0 || height <= 0 || pixels.length < count) {
+            throw new IllegalArgumentException("Invalid image " + width + "x" + height);
+        }
+        long size = HEADER_SIZE + 4L * count;
+        checkMappable(count);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(width)
+                    .putInt(height)
+                    .putInt(config);
+            buffer.order(PIXEL_ORDER).asIntBuffer().put(pixels, 0, (int) count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the header of {@code file}.
+     * @return The header, or null if the file is not a raw image file
+     */
+    static Header readHeader(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return null;
+            }
+            Header header = new Header(raf.readInt(), raf.readInt(), raf.readInt());
+            if (header.width <= 0 || header.height <= 0
+                    || file.length() < HEADER_SIZE + 4L * header.width * header.height) {
+                throw new IOException("Truncated raw image " + file);
+            }
+            return header;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the pixels of {@code file} into {@code dst}.
+     * @param header Header previously returned by {@link #readHeader(File)} for the same file
+     * @param dst Destination, at least width * height long
+     */
+    static void readPixels(File file, Header header, int[] dst) throws IOException {
+        long total = (long) header.width * header.height;
+        checkMappable(total);
+        int count = (int) total;
+        if (dst.length < count) {
+            throw new IllegalArgumentException("Destination too small for raw image");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * count);
+            buffer.order(PIXEL_ORDER).asIntBuffer().get(dst, 0, count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads {@code rows} full rows starting at row {@code top} into {@code dst}.
+     * @param header Header previously returned by {@link #readHeader(File)} for the same file
+     */
+    static void readRows(File file, Header header, int top, int rows, int[] dst)
+            throws IOException {
+        if (top < 0 || rows < 0 || top + rows > header.height) {
+            throw new IllegalArgumentException("Rows " + top + "+" + rows + " out of range");
+        }
+        long total = (long) header.width * rows;
+        checkMappable(total);
+        int count = (int) total;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + 4L * header.width * top, 4L * count);
+            buffer.order(PIXEL_ORDER).asIntBuffer().get(dst, 0, count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a raw image file a few rows at a time, mapping only the rows being written
+     */
+    static final class Writer implements Closeable {
+        private final RandomAccessFile mFile;
+        private final int mWidth;
+        private final int mHeight;
+        private int mRowsWritten;
+
+        Writer(File file, int width, int height, int config) throws IOException {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Invalid image " + width + "x" + height);
+            }
+            long size = HEADER_SIZE + 4L * width * height;
+            mWidth = width;
+            mHeight = height;
+            mFile = new RandomAccessFile(file, "rw");
+            try {
+                mFile.setLength(size);
+                mFile.writeInt(MAGIC);
+                mFile.writeInt(VERSION);
+                mFile.writeInt(width);
+                mFile.writeInt(height);
+                mFile.writeInt(config);
+            } catch (IOException | RuntimeException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Appends {@code rows} full rows taken from {@code pixels} at {@code offset}
+         */
+        void writeRows(int[] pixels, int offset, int rows) throws IOException {
+            if (mRowsWritten + rows > mHeight) {
+                throw new IllegalStateException("Too many rows for a " + mHeight + " row image");
+            }
+            long count = (long) mWidth * rows;
+            checkMappable(count);
+            MappedByteBuffer buffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + 4L * mWidth * mRowsWritten, 4L * count);
+            buffer.order(PIXEL_ORDER).asIntBuffer().put(pixels, offset, (int) count);
+            mRowsWritten += rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    private static void checkMappable(long pixels) throws IOException {
+        if (pixels > MAX_MAPPED_PIXELS) {
+            throw new IOException("Raw image of " + pixels + " pixels is too large to map at once");
+        }
+    }
+
+    private RawImageFile() {
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.renderscript.Allocation;
+import androidx.renderscript.Element;
+import androidx.renderscript.RenderScript;
+import androidx.renderscript.ScriptIntrinsicBlur;
+
+/**
+ * {@link BlurEngine} backed by ScriptIntrinsicBlur.
+ *
+ * The RenderScript context and the intrinsic are created once and kept for the life of the
+ * process instead of per call. ScriptIntrinsicBlur only handles ARGB_8888 and radii up to 25, so
+ * anything else is passed to the parallel Java engine.
+ */
+final class RenderScriptBlurEngine implements BlurEngine {
+
+    static final String NAME = "renderscript";
+
+    // Largest radius accepted by ScriptIntrinsicBlur
+    private static final float MAX_RADIUS = 25f;
+
+    private final RenderScript mRenderScript;
+    private final ScriptIntrinsicBlur mIntrinsic;
+    private final BlurEngine mFallback = JavaBlurEngine.parallel();
+
+    RenderScriptBlurEngine(@NonNull Context applicationContext) {
+        mRenderScript = RenderScript.create(applicationContext);
+        mIntrinsic = ScriptIntrinsicBlur.create(mRenderScript, Element.U8_4(mRenderScript));
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void blur(@NonNull Bitmap input, @NonNull Bitmap output, float radius,
+                     @Nullable ProgressReporter.Stage progress) {
+        if (radius > MAX_RADIUS || input.getConfig() != Bitmap.Config.ARGB_8888) {
+            mFallback.blur(input, output, radius, progress);
+            return;
+        }
+
+        // The intrinsic holds per-call state, so one blur at a time
+        synchronized (mIntrinsic) {
+            Allocation inAlloc = Allocation.createFromBitmap(mRenderScript, input);
+            Allocation outAlloc = Allocation.createFromBitmap(mRenderScript, output);
+            try {
+                mIntrinsic.setRadius(radius);
+                mIntrinsic.setInput(inAlloc);
+                mIntrinsic.forEach(outAlloc);
+                outAlloc.copyTo(output);
+            } finally {
+                inAlloc.destroy();
+                outAlloc.destroy();
+            }
+        }
+        // The intrinsic runs as one opaque call, so there is nothing to report until it is done
+        if (progress != null) {
+            progress.complete();
+        }
+    }
+
+    /**
+     * Releases the RenderScript context; the engine must not be used afterwards
+     */
+    void destroy() {
+        synchronized (mIntrinsic) {
+            mIntrinsic.destroy();
+            mRenderScript.destroy();
+        }
+    }
+}
@@ -3,69 +3,146 @@ package com.example.background.workers;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.provider.MediaStore;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.work.Data;
-import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import com.example.background.Constants;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-public class SaveImageToFileWorker extends Worker {
+public class SaveImageToFileWorker extends AsyncWorker {
     public SaveImageToFileWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
     }
 
     private static final String TAG =SaveImageToFileWorker.class.getSimpleName();
 
-    private static final String TITLE = "Blurred Image";
+    // Title of every saved image, which folder scans use to recognise this app's own output
+    static final String TITLE = "Blurred Image";
 
     private static final SimpleDateFormat DATE_FORMATTER = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss z", Locale.getDefault());
 
-    @NonNull
     @Override
-    public Result doWork() {
-        Context applicationContext = getApplicationContext();
-        ContentResolver resolver = applicationContext.getContentResolver();
-
+    void onStart() {
         // Makes a notification when the work starts and slows down the work so that it's easier to
         // see each WorkRequest start, even on emulated devices
-        WorkerUtils.makeStatusNotification("Saving image", applicationContext);
-        WorkerUtils.sleep();
+        WorkerUtils.makeStatusNotification("Saving image", getApplicationContext());
+        runDelayed(Constants.DELAY_TIME_MILLIS, WorkerExecutors.io(), this::save);
+    }
+
+    private void save() {
+        Context applicationContext = getApplicationContext();
 
         try{
             String clientApi = getInputData().getString("clientApi");
             Log.w("clientApi", "clientApi " + clientApi);
 
-            String resourceUri = getInputData().getString(Constants.KEY_IMAGE_URI);
-            Bitmap bitmap = BitmapFactory.decodeStream(resolver.openInputStream(Uri.parse(resourceUri)));
-            String outputUri = MediaStore.Images.Media.insertImage(
-                    resolver, bitmap, TITLE, DATE_FORMATTER.format(new Date())
-            );
-            if(TextUtils.isEmpty(outputUri)) {
-                Log.e(TAG, "Writing to MediaStore failed");
-                return Result.failure();
+            Uri resourceUri = Uri.parse(getInputData().getString(Constants.KEY_IMAGE_URI));
+            //The blur's output is copied as it is unless another format was asked for, or the
+            //blur wrote something only this app can read
+            File file = ContentResolver.SCHEME_FILE.equals(resourceUri.getScheme())
+                    ? new File(resourceUri.getPath()) : null;
+            OutputCodec stored = file != null ? OutputCodec.forFileName(file.getName()) : null;
+            OutputCodec requested = OutputCodec.fromName(
+                    getInputData().getString(Constants.KEY_SAVE_CODEC), stored);
+            if (requested == null || requested.mimeType == null) {
+                requested = OutputCodec.DEFAULT_FINAL;
+            }
+            requested = WorkerUtils.supportedCodec(requested);
+            File reencoded = null;
+            if (stored == null || !requested.mimeType.equals(stored.mimeType)) {
+                reencoded = reencode(resourceUri, requested);
+                file = reencoded;
             }
+
+            Uri outputUri;
+            //Saves of different images can run side by side on the I/O executor
+            String description;
+            synchronized (DATE_FORMATTER) {
+                description = DATE_FORMATTER.format(new Date());
+            }
+            long start = WorkerMetrics.begin(WorkerMetrics.Stage.MEDIASTORE_INSERT);
+            try {
+                outputUri = WorkerUtils.copyToMediaStore(applicationContext, file,
+                        requested.mimeType, TITLE, description);
+            } finally {
+                WorkerMetrics.end(WorkerMetrics.Stage.MEDIASTORE_INSERT, start, file.length());
+                if (reencoded != null) {
+                    reencoded.delete();
+                }
+            }
+
+            //An image found by a folder scan only counts as processed once its blur is saved
+            recordScannedImage(applicationContext);
+
+            //A save ends a chain, so this is a good point to refresh the exported metrics
+            WorkerMetrics.exportTo(
+                    new File(applicationContext.getFilesDir(), WorkerMetrics.FILE_NAME));
             Data outputData = new Data.Builder()
-                    .putString(Constants.KEY_IMAGE_URI, outputUri)
+                    .putString(Constants.KEY_IMAGE_URI, outputUri.toString())
                     .build();
 
             //make notification on notification bar
             WorkerUtils.makeStatusNotification("Output is " + outputUri.toString(), applicationContext);
 
-            return Result.success(outputData);
+            finish(Result.success(outputData));
         } catch (Exception e) {
             Log.e(TAG, "Unable to save image to Gallery", e);
-            return Result.failure();
+            finish(Result.failure());
+        }
+    }
+
+    /**
+     * Records the image this save came from in {@link ProcessedIndex}, if a folder scan
+     * enqueued it. The image is already saved, so a failure here only means it is blurred again
+     * by a later scan.
+     */
+    private void recordScannedImage(Context applicationContext) {
+        long mediaId = getInputData().getLong(Constants.KEY_SCAN_MEDIA_ID, -1);
+        if (mediaId < 0) {
+            return;
+        }
+        try {
+            ProcessedIndex.get(applicationContext).record(new ProcessedIndex.Entry(mediaId,
+                    getInputData().getLong(Constants.KEY_SCAN_DATE_MODIFIED, 0),
+                    getInputData().getLong(Constants.KEY_SCAN_SIZE, 0)));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to record image " + mediaId + " as processed", e);
+        }
+    }
+
+    /**
+     * Decodes the image behind {@code uri} and encodes it again in {@code codec}
+     * @return Temporary file holding the new encoding
+     */
+    private File reencode(Uri uri, OutputCodec codec) throws IOException {
+        Context applicationContext = getApplicationContext();
+        long start = WorkerMetrics.begin(WorkerMetrics.Stage.SAVE_REENCODE);
+        Bitmap bitmap = null;
+        Uri encoded = null;
+        try {
+            bitmap = WorkerUtils.decodeBitmap(applicationContext, uri);
+            if (bitmap == null) {
+                throw new IOException("Unable to decode " + uri);
+            }
+            encoded = WorkerUtils.writeBitmapToFile(applicationContext, bitmap, codec,
+                    getInputData().getInt(Constants.KEY_OUTPUT_QUALITY,
+                            OutputCodec.DEFAULT_QUALITY), null);
+        } finally {
+            WorkerMetrics.end(WorkerMetrics.Stage.SAVE_REENCODE, start,
+                    encoded != null ? new File(encoded.getPath()).length() : 0);
+            if (bitmap != null) {
+                BitmapPool.put(bitmap);
+            }
         }
+        return new File(encoded.getPath());
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.io.IOException;
+
+/**
+ * Blurs an image one horizontal strip at a time so peak memory depends on the strip height
+ * rather than on the image height.
+ *
+ * Each strip is read together with an overlap of as many rows as the blur reaches above and
+ * below it. Those extra rows give the vertical pass the same neighbours it would see on the whole
+ * image, and strips span the full width, so the rows that are kept are bit-for-bit identical to
+ * running {@link GaussianBlur} or {@link BoxBlur} on the complete image. Strips are full width
+ * rather than square tiles so that finished rows can be streamed straight into a row-oriented
+ * encoder.
+ */
+final class StripBlur {
+
+    /**
+     * Supplies full-width rows of the source image.
+     */
+    interface Source {
+        /**
+         * Reads rows {@code top} to {@code top + rows - 1} into {@code dst}, starting at index 0
+         */
+        void readRows(int top, int rows, int[] dst) throws IOException;
+    }
+
+    /**
+     * Receives finished full-width rows of the blurred image, top to bottom.
+     */
+    interface Sink {
+        void writeRows(int[] pixels, int offset, int rows) throws IOException;
+    }
+
+    /**
+     * Number of rows needed above and below a strip for the given radius
+     */
+    static int overlap(float radius) {
+        return BoxBlur.preferredFor(radius) ? BoxBlur.support(radius) : (int) Math.ceil(radius);
+    }
+
+    /**
+     * Number of pixels held in each of the two strip buffers
+     */
+    static int bufferSize(int width, int height, float radius, int stripRows) {
+        return width * Math.min(height, stripRows + 2 * overlap(radius));
+    }
+
+    /**
+     * Estimated peak heap use of a strip blur: the two strip buffers, the blur's scratch buffer
+     * and the strip the source decodes them from
+     */
+    static long peakBytes(int width, int height, float radius, int stripRows) {
+        return 4L * 4 * bufferSize(width, height, radius, stripRows);
+    }
+
+    /**
+     * Blurs a {@code width} x {@code height} image from {@code source} into {@code sink}.
+     * @param stripRows Rows produced per strip, not counting the overlap
+     */
+    static void blur(Source source, Sink sink, int width, int height, float radius,
+                     int stripRows) throws IOException {
+        blur(source, sink, width, height, radius, stripRows, null);
+    }
+
+    /**
+     * Blurs a {@code width} x {@code height} image from {@code source} into {@code sink},
+     * advancing {@code progress} by one unit per finished row, so {@code height} in total.
+     * @param stripRows Rows produced per strip, not counting the overlap
+     * @param progress Stage to advance, or null
+     */
+    static void blur(Source source, Sink sink, int width, int height, float radius,
+                     int stripRows, ProgressReporter.Stage progress) throws IOException {
+        if (stripRows <= 0) {
+            throw new IllegalArgumentException("stripRows must be positive: " + stripRows);
+        }
+        int overlap = overlap(radius);
+        int size = bufferSize(width, height, radius, stripRows);
+        int[] band = PixelBuffers.acquire(size);
+        int[] blurred = PixelBuffers.acquire(size);
+        try {
+            for (int top = 0; top < height; top += stripRows) {
+                int rows = Math.min(stripRows, height - top);
+                int readTop = Math.max(0, top - overlap);
+                int readBottom = Math.min(height, top + rows + overlap);
+                int readRows = readBottom - readTop;
+
+                source.readRows(readTop, readRows, band);
+                if (BoxBlur.preferredFor(radius)) {
+                    BoxBlur.blur(band, blurred, width, readRows, radius,
+                            GaussianBlur.sharedPool(), null);
+                } else {
+                    GaussianBlur.blur(band, blurred, width, readRows, radius);
+                }
+                sink.writeRows(blurred, (top - readTop) * width, rows);
+                if (progress != null) {
+                    progress.advance(rows);
+                }
+            }
+        } finally {
+            PixelBuffers.release(band);
+            PixelBuffers.release(blurred);
+        }
+    }
+
+    private StripBlur() {
+    }
+}
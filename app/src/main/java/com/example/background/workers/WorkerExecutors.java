@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors the asynchronous workers split their steps across.
+ *
+ * Reading, decoding, encoding and writing files runs on a small I/O pool; blurring and scaling
+ * run on the fork/join pool {@link GaussianBlur} already sizes to the core count. Delays run on
+ * a single scheduler thread instead of a sleeping worker thread. None of these are WorkManager's
+ * own executor, which only ever hands a worker its first callback, so a batch of long blurs
+ * cannot starve other work scheduled through WorkManager.
+ */
+final class WorkerExecutors {
+
+    // Enough for one image to decode while another encodes and a third writes
+    private static final int IO_THREADS = 3;
+
+    private static final ExecutorService IO =
+            Executors.newFixedThreadPool(IO_THREADS, new BackgroundThreadFactory("blur-io"));
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("blur-delay"));
+
+    /**
+     * Executor for file and codec work
+     */
+    @NonNull
+    static Executor io() {
+        return IO;
+    }
+
+    /**
+     * Executor for pixel work, sized to the number of cores
+     */
+    @NonNull
+    static Executor compute() {
+        return GaussianBlur.sharedPool();
+    }
+
+    /**
+     * Scheduler for delays, which must only hand work on to another executor
+     */
+    @NonNull
+    static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+
+    private static final class BackgroundThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mPrefix + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private WorkerExecutors() {
+    }
+}
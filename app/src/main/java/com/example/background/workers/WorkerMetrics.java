@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.os.TraceCompat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Per-stage timings and byte counts for the worker chain.
+ *
+ * Every stage owns a fixed histogram of durations in power-of-two microsecond buckets, so the
+ * store has a fixed size however many images go through it, and recording a sample allocates
+ * nothing. Each stage is also wrapped in a trace section named after it, which shows up in
+ * systrace and Perfetto captures. Call {@link #begin(Stage)} and {@link #end(Stage, long, long)}
+ * on the same thread, with the end in a finally block so trace sections stay balanced.
+ */
+final class WorkerMetrics {
+
+    private static final String TAG = WorkerMetrics.class.getSimpleName();
+
+    static final String FILE_NAME = "worker_metrics.json";
+
+    // Bucket i holds durations from 2^i to 2^(i+1) - 1 microseconds; the last one is open ended
+    private static final int BUCKETS = 32;
+
+    /**
+     * The timed steps of the blur, save, cleanup and folder scan workers, and of blur previews
+     */
+    enum Stage {
+        SLEEP,
+        CACHE_LOOKUP,
+        DECODE,
+        BLUR,
+        SCALE,
+        ENCODE,
+        TILED_BLUR,
+        SAVE_REENCODE,
+        MEDIASTORE_INSERT,
+        CLEANUP,
+        PREVIEW,
+        FOLDER_SCAN,
+        // From a stop request to the stopped worker having released everything
+        STOP;
+
+        final String traceName = "Blur:" + name();
+        final Histogram histogram = new Histogram();
+    }
+
+    private static final class Histogram {
+        final long[] counts = new long[BUCKETS];
+        long count;
+        long totalNanos;
+        long minNanos = Long.MAX_VALUE;
+        long maxNanos;
+        long totalBytes;
+
+        synchronized void record(long nanos, long bytes) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            counts[bucket]++;
+            count++;
+            totalNanos += nanos;
+            minNanos = Math.min(minNanos, nanos);
+            maxNanos = Math.max(maxNanos, nanos);
+            totalBytes += bytes;
+        }
+
+        /**
+         * Upper bound in microseconds of the bucket holding the given quantile
+         */
+        long quantileMicros(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (1L << (i + 1)) - 1;
+                }
+            }
+            return maxNanos / 1000;
+        }
+    }
+
+    /**
+     * Opens the stage's trace section and returns its start time
+     */
+    static long begin(@NonNull Stage stage) {
+        TraceCompat.beginSection(stage.traceName);
+        return System.nanoTime();
+    }
+
+    /**
+     * Closes the stage's trace section and records its duration
+     * @param startNanos Value returned by {@link #begin(Stage)}
+     * @param bytes Bytes the stage read or wrote, or 0 if not meaningful
+     */
+    static void end(@NonNull Stage stage, long startNanos, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        TraceCompat.endSection();
+        stage.histogram.record(nanos, bytes);
+    }
+
+    /**
+     * Records a duration measured elsewhere, without a trace section
+     */
+    static void record(@NonNull Stage stage, long nanos, long bytes) {
+        stage.histogram.record(nanos, bytes);
+    }
+
+    /**
+     * Returns every stage that has samples as a JSON object keyed by stage name. Times are in
+     * microseconds; quantiles are bucket upper bounds, so within a factor of two.
+     */
+    @NonNull
+    static String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Stage stage : Stage.values()) {
+            Histogram h = stage.histogram;
+            synchronized (h) {
+                if (h.count == 0) {
+                    continue;
+                }
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append("\n  \"").append(stage.name()).append("\": {")
+                        .append("\"count\": ").append(h.count)
+                        .append(", \"meanUs\": ").append(h.totalNanos / h.count / 1000)
+                        .append(", \"minUs\": ").append(h.minNanos / 1000)
+                        .append(", \"maxUs\": ").append(h.maxNanos / 1000)
+                        .append(", \"p50Us\": ").append(h.quantileMicros(0.5))
+                        .append(", \"p90Us\": ").append(h.quantileMicros(0.9))
+                        .append(", \"p99Us\": ").append(h.quantileMicros(0.99))
+                        .append(", \"totalBytes\": ").append(h.totalBytes)
+                        .append(", \"bucketsUs\": [");
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append(h.counts[i]);
+                }
+                json.append("]}");
+            }
+        }
+        return json.append("\n}\n").toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to {@code file}, replacing it. Failures are only logged.
+     */
+    static void exportTo(@NonNull File file) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+            writer.write(toJson());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to export metrics to " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private WorkerMetrics() {
+    }
+}
@@ -18,36 +18,56 @@ package com.example.background.workers;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
-import androidx.renderscript.Allocation;
-import androidx.renderscript.Element;
-import androidx.renderscript.RenderScript;
-import androidx.renderscript.ScriptIntrinsicBlur;
 import android.util.Log;
 
 import com.example.background.Constants;
 import com.example.background.R;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 import static com.example.background.Constants.CHANNEL_ID;
-import static com.example.background.Constants.DELAY_TIME_MILLIS;
 
 
 final class WorkerUtils {
     private static final String TAG = WorkerUtils.class.getSimpleName();
 
+    // Radius used by every blur pass, matching the old ScriptIntrinsicBlur setting
+    static final float BLUR_RADIUS = 10f;
+
+    // Rows copied out of a bitmap at a time when streaming it into a PNG
+    private static final int PNG_STRIP_ROWS = 64;
+
     /**
      * Create a Notification that is shown as a heads-up notification if possible.
      *
@@ -95,82 +115,755 @@ final class WorkerUtils {
     }
 
     /**
-     * Method for sleeping for a fixed about of time to emulate slower work
+     * Blurs the given Bitmap image at radius 10 with the engine picked by {@link BlurEngines}
+     * @param bitmap Image to blur
+     * @param applicationContext Application context
+     * @return Blurred bitmap image
      */
-    static void sleep() {
-        try {
-            Thread.sleep(DELAY_TIME_MILLIS, 0);
-        } catch (InterruptedException e) {
-            Log.d(TAG, e.getMessage());
-        }
+    @WorkerThread
+    static Bitmap blurBitmap(@NonNull Bitmap bitmap,
+                             @NonNull Context applicationContext) {
+        return blurBitmap(bitmap, applicationContext, BLUR_RADIUS);
     }
 
     /**
-     * Blurs the given Bitmap image
+     * Blurs the given Bitmap image with the engine picked by {@link BlurEngines}
      * @param bitmap Image to blur
      * @param applicationContext Application context
+     * @param radius Blur radius
      * @return Blurred bitmap image
      */
     @WorkerThread
     static Bitmap blurBitmap(@NonNull Bitmap bitmap,
-                             @NonNull Context applicationContext) {
+                             @NonNull Context applicationContext,
+                             float radius) {
+        return blurBitmap(bitmap, applicationContext, radius, null);
+    }
+
+    /**
+     * Blurs the given Bitmap image with the engine picked by {@link BlurEngines}
+     * @param bitmap Image to blur
+     * @param applicationContext Application context
+     * @param radius Blur radius
+     * @param progress Stage to advance as the blur runs, or null
+     * @return Blurred bitmap image
+     */
+    @WorkerThread
+    static Bitmap blurBitmap(@NonNull Bitmap bitmap,
+                             @NonNull Context applicationContext,
+                             float radius,
+                             @Nullable ProgressReporter.Stage progress) {
+
+        // Create the output bitmap
+        Bitmap output = BitmapPool.get(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+
+        // Blur the image; a stopped blur hands its output straight back to the pool
+        try {
+            BlurEngines.get(applicationContext).blur(bitmap, output, radius, progress);
+        } catch (RuntimeException e) {
+            BitmapPool.put(output);
+            throw e;
+        }
+
+        return output;
+    }
+
+    /**
+     * Whether a blur estimated to need {@code peakBytes} at once, as given by
+     * {@link BlurPlan#peakBytes(int)}, fits in the memory the process has left
+     */
+    static boolean fitsInMemory(long peakBytes) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return peakBytes <= available;
+    }
+
+    /**
+     * Blurs the image behind a Uri one strip at a time with {@link StripBlur} and streams the
+     * result into a new temporary file, so only a strip of the image is ever in memory. The
+     * output is identical to a whole-image blur with the Java engine at full resolution.
+     * Only {@link OutputCodec#RAW} and the PNG codecs can be written this way; WebP and JPEG
+     * need the whole bitmap, so they are written as PNG instead.
+     * @param applicationContext Application context
+     * @param uri Uri of the image, raw or encoded
+     * @param radius Blur radius in source pixels
+     * @param stripRows Rows blurred per strip
+     * @param codec Output format
+     * @param progress Stage to advance by one unit per finished row, or null
+     * @return Uri for the temp file
+     * @throws IOException Throws if the image cannot be read or the output cannot be written
+     */
+    @WorkerThread
+    static Uri blurTiledToFile(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri,
+            float radius,
+            int stripRows,
+            @NonNull OutputCodec codec,
+            @Nullable ProgressReporter.Stage progress) throws IOException {
+
+        final RawImageFile.Header header = readRawHeader(uri);
+        final int width;
+        final int height;
+        final boolean hasAlpha;
+        StripBlur.Source source = null;
+        BitmapRegionDecoder decoder = null;
+        ParcelFileDescriptor descriptor = null;
 
-        RenderScript rsContext = null;
         try {
+            if (header != null) {
+                final File file = new File(uri.getPath());
+                width = header.width;
+                height = header.height;
+                hasAlpha = header.config != RawImageFile.CONFIG_RGB_565;
+                source = (top, rows, dst) -> RawImageFile.readRows(file, header, top, rows, dst);
+            } else {
+                BitmapFactory.Options bounds = decodeBounds(applicationContext, uri);
+                hasAlpha = !"image/jpeg".equals(bounds.outMimeType);
+                descriptor = applicationContext.getContentResolver().openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    throw new FileNotFoundException("Unable to open " + uri);
+                }
+                decoder = BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false);
+                width = decoder.getWidth();
+                height = decoder.getHeight();
+                source = new RegionSource(decoder);
+            }
 
-            // Create the output bitmap
-            Bitmap output = Bitmap.createBitmap(
-                    bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
-
-            // Blur the image
-            rsContext = RenderScript.create(applicationContext, RenderScript.ContextType.DEBUG);
-            Allocation inAlloc = Allocation.createFromBitmap(rsContext, bitmap);
-            Allocation outAlloc = Allocation.createTyped(rsContext, inAlloc.getType());
-            ScriptIntrinsicBlur theIntrinsic =
-                    ScriptIntrinsicBlur.create(rsContext, Element.U8_4(rsContext));
-            theIntrinsic.setRadius(10.f);
-            theIntrinsic.setInput(inAlloc);
-            theIntrinsic.forEach(outAlloc);
-            outAlloc.copyTo(output);
-
-            return output;
+            boolean raw = codec == OutputCodec.RAW;
+            File outputFile = newOutputFile(applicationContext,
+                    raw ? RawImageFile.EXTENSION : ".png");
+            Closeable writer = null;
+            boolean written = false;
+            try {
+                if (raw) {
+                    RawImageFile.Writer rawWriter = new RawImageFile.Writer(outputFile, width,
+                            height, hasAlpha
+                                    ? RawImageFile.CONFIG_ARGB_8888 : RawImageFile.CONFIG_RGB_565);
+                    writer = rawWriter;
+                    StripBlur.blur(source, rawWriter::writeRows, width, height, radius,
+                            stripRows, progress);
+                } else {
+                    int level = codec == OutputCodec.PNG_FAST
+                            ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+                    PngStreamWriter pngWriter = new PngStreamWriter(
+                            new BufferedOutputStream(new FileOutputStream(outputFile)),
+                            width, height, hasAlpha, level);
+                    writer = pngWriter;
+                    StripBlur.blur(source, pngWriter::writeRows, width, height, radius,
+                            stripRows, progress);
+                }
+                writer.close();
+                written = true;
+            } finally {
+                //A failed or stopped blur leaves no partial file behind
+                if (!written) {
+                    closeQuietly(writer);
+                    outputFile.delete();
+                }
+            }
+            Log.d(TAG, String.format("Blurred %dx%d image in strips of %d rows",
+                    width, height, stripRows));
+            return Uri.fromFile(outputFile);
         } finally {
-            if (rsContext != null) {
-                rsContext.finish();
+            if (source instanceof RegionSource) {
+                ((RegionSource) source).release();
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            if (descriptor != null) {
+                descriptor.close();
             }
         }
     }
 
     /**
-     * Writes bitmap to a temporary file and returns the Uri for the file
+     * Reads full-width strips of an encoded image through a BitmapRegionDecoder, reusing the
+     * previous strip's bitmap where the size allows
+     */
+    private static final class RegionSource implements StripBlur.Source {
+        private final BitmapRegionDecoder mDecoder;
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private final Rect mRect = new Rect();
+
+        RegionSource(BitmapRegionDecoder decoder) {
+            mDecoder = decoder;
+            mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        @Override
+        public void readRows(int top, int rows, int[] dst) throws IOException {
+            int width = mDecoder.getWidth();
+            Bitmap previous = mOptions.inBitmap;
+            if (previous != null
+                    && (previous.getWidth() != width || previous.getHeight() != rows)) {
+                BitmapPool.put(previous);
+                mOptions.inBitmap = null;
+            }
+            if (mOptions.inBitmap == null) {
+                BitmapPool.attachInBitmap(mOptions, width, rows);
+            }
+
+            mRect.set(0, top, width, top + rows);
+            Bitmap strip = mDecoder.decodeRegion(mRect, mOptions);
+            if (strip == null) {
+                throw new IOException("Unable to decode rows " + top + "+" + rows);
+            }
+            strip.getPixels(dst, 0, width, 0, 0, width, rows);
+            mOptions.inBitmap = strip;
+        }
+
+        void release() {
+            BitmapPool.put(mOptions.inBitmap);
+            mOptions.inBitmap = null;
+        }
+    }
+
+    /**
+     * Writes bitmap to a temporary file in {@link OutputCodec#DEFAULT_FINAL} and returns the Uri
+     * for the file
      * @param applicationContext Application context
      * @param bitmap Bitmap to write to temp file
      * @return Uri for temp file with bitmap
-     * @throws FileNotFoundException Throws if bitmap file cannot be found
+     * @throws IOException Throws if the file cannot be written
      */
     static Uri writeBitmapToFile(
             @NonNull Context applicationContext,
-            @NonNull Bitmap bitmap) throws FileNotFoundException {
+            @NonNull Bitmap bitmap) throws IOException {
+        return writeBitmapToFile(applicationContext, bitmap, OutputCodec.DEFAULT_FINAL,
+                OutputCodec.DEFAULT_QUALITY, null);
+    }
 
-        String name = String.format("blur-filter-output-%s.png", UUID.randomUUID().toString());
-        File outputDir = new File(applicationContext.getFilesDir(), Constants.OUTPUT_PATH);
-        if (!outputDir.exists()) {
-            outputDir.mkdirs(); // should succeed
+    /**
+     * Writes bitmap to a temporary file in the given format and returns the Uri for the file
+     * @param applicationContext Application context
+     * @param bitmap Bitmap to write to temp file
+     * @param codec Output format
+     * @param quality Quality from 0 to 100, only used by {@link OutputCodec#JPEG}
+     * @param progress Stage to advance by one unit per row, or null. Only
+     *                 {@link OutputCodec#PNG_FAST} reports rows as they are written; the other
+     *                 codecs complete the stage when they finish.
+     * @return Uri for temp file with bitmap
+     * @throws IOException Throws if the file cannot be written
+     */
+    @WorkerThread
+    static Uri writeBitmapToFile(
+            @NonNull Context applicationContext,
+            @NonNull Bitmap bitmap,
+            @NonNull OutputCodec codec,
+            int quality,
+            @Nullable ProgressReporter.Stage progress) throws IOException {
+
+        codec = supportedCodec(codec);
+        if (codec == OutputCodec.RAW) {
+            Uri uri = writeBitmapToRawFile(applicationContext, bitmap);
+            if (progress != null) {
+                progress.complete();
+            }
+            return uri;
+        }
+
+        if (progress != null) {
+            progress.throwIfCancelled();
         }
-        File outputFile = new File(outputDir, name);
-        FileOutputStream out = null;
+        long start = System.nanoTime();
+        File outputFile = newOutputFile(applicationContext, codec.extension);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+        boolean written = false;
         try {
-            out = new FileOutputStream(outputFile);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 0 /* ignored for PNG */, out);
-        } finally {
+            switch (codec) {
+                case PNG_FAST:
+                    writePngStreaming(bitmap, out, Deflater.BEST_SPEED, progress);
+                    out = null; // closed by the PNG writer
+                    break;
+                case WEBP_LOSSLESS:
+                    // Quality 100 selects lossless WebP from Android 10 on
+                    bitmap.compress(Bitmap.CompressFormat.WEBP, 100, out);
+                    break;
+                case JPEG:
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                    break;
+                default:
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 0 /* ignored for PNG */, out);
+                    break;
+            }
             if (out != null) {
+                out.close();
+            }
+            written = true;
+        } finally {
+            //A failed or stopped encode leaves no partial file behind
+            if (!written) {
+                closeQuietly(out);
+                outputFile.delete();
+            }
+        }
+        if (progress != null) {
+            progress.complete();
+        }
+        Log.d(TAG, String.format("Encoded %dx%d as %s: %d bytes in %d ms", bitmap.getWidth(),
+                bitmap.getHeight(), codec, outputFile.length(),
+                (System.nanoTime() - start) / 1000000));
+        return Uri.fromFile(outputFile);
+    }
+
+    /**
+     * Maps a codec to one this device can produce: lossless WebP needs Android 10
+     */
+    static OutputCodec supportedCodec(@NonNull OutputCodec codec) {
+        if (codec == OutputCodec.WEBP_LOSSLESS
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return OutputCodec.PNG;
+        }
+        return codec;
+    }
+
+    /**
+     * Streams a bitmap into a {@link PngStreamWriter} a strip of rows at a time, so only one
+     * strip of pixels is copied out of the bitmap at once
+     */
+    private static void writePngStreaming(@NonNull Bitmap bitmap, @NonNull OutputStream out,
+                                          int level, @Nullable ProgressReporter.Stage progress)
+            throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int stripRows = Math.min(height, PNG_STRIP_ROWS);
+        int[] pixels = PixelBuffers.acquire(width * stripRows);
+        PngStreamWriter writer = null;
+        boolean written = false;
+        try {
+            writer = new PngStreamWriter(out, width, height, bitmap.hasAlpha(), level);
+            for (int top = 0; top < height; top += stripRows) {
+                int rows = Math.min(stripRows, height - top);
+                bitmap.getPixels(pixels, 0, width, 0, top, width, rows);
+                writer.writeRows(pixels, 0, rows);
+                if (progress != null) {
+                    progress.advance(rows);
+                }
+            }
+            writer.close();
+            written = true;
+        } finally {
+            if (!written) {
+                closeQuietly(writer != null ? writer : out);
+            }
+            PixelBuffers.release(pixels);
+        }
+    }
+
+    /**
+     * Writes bitmap to a temporary {@link RawImageFile} for the next worker in the chain and
+     * returns the Uri for the file. Nothing is compressed.
+     * @param applicationContext Application context
+     * @param bitmap Bitmap to write to temp file
+     * @return Uri for temp file with bitmap
+     * @throws IOException Throws if the file cannot be written
+     */
+    static Uri writeBitmapToRawFile(
+            @NonNull Context applicationContext,
+            @NonNull Bitmap bitmap) throws IOException {
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = PixelBuffers.acquire(width * height);
+        try {
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+            int config = bitmap.getConfig() == Bitmap.Config.RGB_565
+                    ? RawImageFile.CONFIG_RGB_565 : RawImageFile.CONFIG_ARGB_8888;
+            File outputFile = newOutputFile(applicationContext, RawImageFile.EXTENSION);
+            RawImageFile.write(outputFile, pixels, width, height, config);
+            return Uri.fromFile(outputFile);
+        } finally {
+            PixelBuffers.release(pixels);
+        }
+    }
+
+    /**
+     * Reads the dimensions of the image behind a Uri without decoding its pixels
+     * @param applicationContext Application context
+     * @param uri Uri of the image, raw or encoded
+     * @return Options holding outWidth and outHeight, which are -1 if the image is unreadable
+     * @throws IOException Throws if the image cannot be read
+     */
+    @WorkerThread
+    static BitmapFactory.Options decodeBounds(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri) throws IOException {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        RawImageFile.Header header = readRawHeader(uri);
+        if (header != null) {
+            options.outWidth = header.width;
+            options.outHeight = header.height;
+            return options;
+        }
+
+        InputStream in = applicationContext.getContentResolver().openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Picks the config {@link #decodeBitmap(Context, Uri, BlurPlan, Bitmap.Config)} decodes the
+     * image behind a Uri into. Raw images keep the config they were written with. JPEGs cannot
+     * hold transparency, so with {@code reduceOpaque} set they are decoded as RGB_565, which
+     * halves every bitmap the blur holds at a colour cost described at
+     * {@link Constants#KEY_REDUCE_OPAQUE}. Anything else is decoded as ARGB_8888, since telling
+     * whether it is opaque would take decoding it.
+     * @param bounds Result of {@link #decodeBounds(Context, Uri)} for the same Uri
+     * @throws IOException Throws if the image cannot be read
+     */
+    static Bitmap.Config decodeConfig(
+            @NonNull Uri uri,
+            @NonNull BitmapFactory.Options bounds,
+            boolean reduceOpaque) throws IOException {
+        RawImageFile.Header header = readRawHeader(uri);
+        if (header != null) {
+            return header.config == RawImageFile.CONFIG_RGB_565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        }
+        return reduceOpaque && "image/jpeg".equals(bounds.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Size of one pixel of a bitmap with the given config
+     */
+    static int bytesPerPixel(@NonNull Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    /**
+     * Decodes the image behind a Uri, which is either a raw file written by
+     * {@link #writeBitmapToRawFile(Context, Bitmap)} or anything BitmapFactory understands
+     * @param applicationContext Application context
+     * @param uri Uri of the image
+     * @return Decoded bitmap, or null if the image could not be decoded
+     * @throws IOException Throws if the image cannot be read
+     */
+    @WorkerThread
+    static Bitmap decodeBitmap(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri) throws IOException {
+        return decodeBitmap(applicationContext, uri, null, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decodes the image behind a Uri at the working size of a {@link BlurPlan}. Encoded images
+     * are subsampled by the plan's power-of-two sample size and scaled the rest of the way by the
+     * decoder itself. The decoder still holds the subsampled image while it scales, which is the
+     * full resolution image when the sample size is 1; {@link BlurPlan#peakBytes(int)} counts
+     * it. Raw images are read whole and then scaled down.
+     * @param applicationContext Application context
+     * @param uri Uri of the image
+     * @param plan Plan giving the working size, or null to decode at full size
+     * @param config Config for encoded images, usually from
+     *               {@link #decodeConfig(Uri, BitmapFactory.Options, boolean)}; raw images keep
+     *               their own
+     * @return Decoded bitmap, or null if the image could not be decoded
+     * @throws IOException Throws if the image cannot be read
+     */
+    @WorkerThread
+    static Bitmap decodeBitmap(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri,
+            @Nullable BlurPlan plan,
+            @NonNull Bitmap.Config config) throws IOException {
+
+        RawImageFile.Header header = readRawHeader(uri);
+        if (header != null) {
+            File file = new File(uri.getPath());
+            Bitmap bitmap = BitmapPool.get(header.width, header.height,
+                    header.config == RawImageFile.CONFIG_RGB_565
+                            ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            //A failed read gives the pooled bitmap back, like the other decode paths do
+            try {
+                int[] pixels = PixelBuffers.acquire(header.width * header.height);
+                try {
+                    RawImageFile.readPixels(file, header, pixels);
+                    bitmap.setPixels(pixels, 0, header.width, 0, 0, header.width, header.height);
+                } finally {
+                    PixelBuffers.release(pixels);
+                }
+                if (plan != null && plan.workingWidth != header.width) {
+                    Bitmap scaled = scaleBitmap(bitmap, plan.workingWidth, plan.workingHeight);
+                    BitmapPool.put(bitmap);
+                    bitmap = scaled;
+                }
+            } catch (IOException | RuntimeException e) {
+                BitmapPool.put(bitmap);
+                throw e;
+            }
+            return bitmap;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        if (plan != null) {
+            options.inSampleSize = plan.sampleSize;
+            // Let the decoder scale the rest of the way instead of making a second copy
+            int sampledWidth = plan.sourceWidth / plan.sampleSize;
+            if (plan.workingWidth < sampledWidth) {
+                options.inScaled = true;
+                options.inDensity = plan.sourceWidth;
+                options.inTargetDensity = plan.workingWidth * plan.sampleSize;
+            }
+            BitmapPool.attachInBitmap(options, plan.workingWidth, plan.workingHeight);
+        }
+
+        //A failed decode gives the pooled bitmap back, like the raw path does
+        Bitmap bitmap;
+        try {
+            try {
+                bitmap = decodeStream(applicationContext, uri, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder could not reuse the pooled bitmap; decode into a fresh one instead
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                Log.d(TAG, "Unable to reuse bitmap for " + uri, e);
+                BitmapPool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = decodeStream(applicationContext, uri, options);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (options.inBitmap != null) {
+                BitmapPool.put(options.inBitmap);
+            }
+            throw e;
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            BitmapPool.put(options.inBitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales a bitmap into a pooled bitmap with bilinear filtering
+     * @param bitmap Bitmap to scale, left untouched
+     * @param width Target width
+     * @param height Target height
+     * @return Scaled bitmap, which the caller may return to {@link BitmapPool}
+     */
+    @WorkerThread
+    static Bitmap scaleBitmap(@NonNull Bitmap bitmap, int width, int height) {
+        Bitmap.Config config = bitmap.getConfig() != null
+                ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap scaled = BitmapPool.get(width, height, config);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        // Pooled bitmaps still hold old pixels, so overwrite rather than blend
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, width, height), paint);
+        return scaled;
+    }
+
+    private static Bitmap decodeStream(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri,
+            @NonNull BitmapFactory.Options options) throws IOException {
+
+        InputStream in = applicationContext.getContentResolver().openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Adds an encoded image file to the shared image collection without decoding it. The entry
+     * is created through the ContentResolver and the file's bytes are copied into it with a
+     * channel transfer. From Android 10 on the entry stays pending, hidden from other apps,
+     * until the copy has finished.
+     * @param applicationContext Application context
+     * @param file Encoded image to copy; left in place
+     * @param mimeType MIME type of {@code file}
+     * @param title Title of the new entry, also used for its file name
+     * @param description Description of the new entry
+     * @return Uri of the new entry
+     * @throws IOException Throws if the entry cannot be created or written, after deleting it
+     */
+    @WorkerThread
+    static Uri copyToMediaStore(
+            @NonNull Context applicationContext,
+            @NonNull File file,
+            @NonNull String mimeType,
+            @NonNull String title,
+            @NonNull String description) throws IOException {
+
+        ContentResolver resolver = applicationContext.getContentResolver();
+        long now = System.currentTimeMillis();
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.TITLE, title);
+        values.put(MediaStore.Images.Media.DISPLAY_NAME,
+                title + " " + now + (dot >= 0 ? name.substring(dot) : ""));
+        values.put(MediaStore.Images.Media.DESCRIPTION, description);
+        values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
+        values.put(MediaStore.Images.Media.DATE_ADDED, now / 1000);
+        values.put(MediaStore.Images.Media.DATE_TAKEN, now);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            values.put(MediaStore.Images.Media.IS_PENDING, 1);
+        }
+        Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            throw new IOException("Unable to create a MediaStore entry for " + file);
+        }
+
+        boolean copied = false;
+        try {
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "w");
+            if (descriptor == null) {
+                throw new FileNotFoundException("Unable to open " + uri);
+            }
+            FileInputStream in = new FileInputStream(file);
+            FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            } finally {
                 try {
+                    in.close();
+                } finally {
                     out.close();
-                } catch (IOException ignore) {
                 }
             }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                values.clear();
+                values.put(MediaStore.Images.Media.IS_PENDING, 0);
+                resolver.update(uri, values, null, null);
+            }
+            copied = true;
+        } finally {
+            if (!copied) {
+                resolver.delete(uri, null, null);
+            }
         }
-        return Uri.fromFile(outputFile);
+        return uri;
+    }
+
+    /**
+     * Returns the process-wide cache of finished blurs
+     * @param applicationContext Application context
+     */
+    static BlurCache getBlurCache(@NonNull Context applicationContext) {
+        return BlurCache.open(new File(applicationContext.getFilesDir(), BlurCache.DIRECTORY));
+    }
+
+    /**
+     * Returns the process-wide journal of temporary files in the output directory
+     * @param applicationContext Application context
+     */
+    static OutputJournal getOutputJournal(@NonNull Context applicationContext) {
+        return OutputJournal.open(
+                new File(applicationContext.getFilesDir(), Constants.OUTPUT_PATH));
+    }
+
+    /**
+     * Computes the {@link BlurCache} key for blurring the image behind a Uri
+     * @param applicationContext Application context
+     * @param uri Uri of the original image
+     * @param params Description of every parameter that affects the output
+     * @return The key, or null for raw intermediates, which are never cached
+     * @throws IOException Throws if the image cannot be read
+     */
+    @WorkerThread
+    @Nullable
+    static String cacheKey(
+            @NonNull Context applicationContext,
+            @NonNull Uri uri,
+            @NonNull String params) throws IOException {
+
+        if (readRawHeader(uri) != null) {
+            return null;
+        }
+        InputStream in = applicationContext.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BlurCache.key(in, params);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the header of a raw image file, or null if the Uri does not point at one
+     */
+    @Nullable
+    private static RawImageFile.Header readRawHeader(@NonNull Uri uri) throws IOException {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return null;
+        }
+        return RawImageFile.readHeader(new File(uri.getPath()));
+    }
+
+    /**
+     * Closes {@code closeable} if there is one, ignoring errors; for cleaning up after a failure
+     * that is already being reported
+     */
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Copies a file into a new file in the output directory, keeping its extension
+     * @param applicationContext Application context
+     * @param source File to copy
+     * @return The copy
+     */
+    static File copyToOutputFile(@NonNull Context applicationContext, File source)
+            throws IOException {
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        File target = newOutputFile(applicationContext, dot >= 0 ? name.substring(dot) : "");
+        try {
+            BlurCache.copy(source, target);
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        return target;
+    }
+
+    /**
+     * Creates a new, uniquely named file in the output directory
+     * @param applicationContext Application context
+     * @param extension File extension including the dot
+     * @return The file, which does not exist yet
+     */
+    private static File newOutputFile(@NonNull Context applicationContext, String extension) {
+        String name = String.format("blur-filter-output-%s%s", UUID.randomUUID().toString(),
+                extension);
+        File outputDir = new File(applicationContext.getFilesDir(), Constants.OUTPUT_PATH);
+        if (!outputDir.exists()) {
+            outputDir.mkdirs(); // should succeed
+        }
+        return new File(outputDir, name);
     }
 
     private WorkerUtils() {
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The running-sum box blur against the direct Gaussian kernel on one thread, across radii. The
+ * box blur's time should stay flat while the Gaussian's grows with the radius; where the two
+ * cross sets {@link BoxBlur#MIN_RADIUS}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoxBlurBenchmark {
+
+    @Param({"1024"})
+    public int size;
+
+    @Param({"2.5", "5", "8", "10", "25", "50", "100"})
+    public float radius;
+
+    private int[] mSrc;
+    private int[] mDst;
+
+    @Setup
+    public void setUp() {
+        mSrc = SyntheticImages.photoLike(size, size);
+        mDst = new int[size * size];
+    }
+
+    @Benchmark
+    public int[] gaussian() {
+        GaussianBlur.blur(mSrc, mDst, size, size, radius, null);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] box() {
+        BoxBlur.blur(mSrc, mDst, size, size, radius, null, null);
+        return mDst;
+    }
+}
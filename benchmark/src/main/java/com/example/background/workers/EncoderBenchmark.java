@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Encode time and output size for the pure-Java writers, on an already blurred image. RAW and
+ * PNG_FAST are the app's {@link OutputCodec}s of the same name. PNG_STREAMED is
+ * {@link PngStreamWriter} at the default deflate level, which the app only uses for tiled blurs
+ * saved as {@link OutputCodec#PNG}; other PNG outputs, WebP and JPEG go through Bitmap.compress
+ * and are only measured on a device, where WorkerUtils logs the same two numbers for every file
+ * it writes.
+ *
+ * The encoded size does not change between invocations, so it is measured once per trial in
+ * {@link #setUp()} and printed next to the JMH output rather than reported as a counter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"RAW", "PNG_FAST", "PNG_STREAMED"})
+    public String writerName;
+
+    private int[] mPixels;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        int[] image = SyntheticImages.photoLike(size, size);
+        mPixels = new int[size * size];
+        GaussianBlur.blur(image, mPixels, size, size, 10f);
+        mFile = File.createTempFile("encode", "RAW".equals(writerName)
+                ? OutputCodec.RAW.extension : OutputCodec.PNG.extension);
+        encode();
+        System.out.printf("%nEncoderBenchmark writer=%s size=%d: %d bytes%n",
+                writerName, size, mFile.length());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public File encode() throws IOException {
+        switch (writerName) {
+            case "RAW":
+                RawImageFile.write(mFile, mPixels, size, size, RawImageFile.CONFIG_ARGB_8888);
+                break;
+            case "PNG_FAST":
+                writePng(Deflater.BEST_SPEED);
+                break;
+            default:
+                writePng(Deflater.DEFAULT_COMPRESSION);
+                break;
+        }
+        return mFile;
+    }
+
+    private void writePng(int level) throws IOException {
+        PngStreamWriter writer = new PngStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(mFile)), size, size, false, level);
+        try {
+            writer.writeRows(mPixels, 0, size);
+        } finally {
+            writer.close();
+        }
+    }
+}
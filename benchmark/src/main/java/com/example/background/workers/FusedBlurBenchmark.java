@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A multi-level blur done as a chain, one radius-10 blur per level with a raw intermediate file
+ * between steps, against the single fused blur of the equivalent radius that BlurWorker runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FusedBlurBenchmark {
+
+    private static final float RADIUS = 10f;
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"2", "3"})
+    public int level;
+
+    private int[] mSrc;
+    private int[] mDst;
+    private File mIntermediate;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSrc = SyntheticImages.photoLike(size, size);
+        mDst = new int[size * size];
+        mIntermediate = File.createTempFile("blur", RawImageFile.EXTENSION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mIntermediate.delete();
+    }
+
+    @Benchmark
+    public int[] chained() throws IOException {
+        // Every step after the first reads back what the previous step wrote
+        int[] input = PixelBuffers.acquire(size * size);
+        try {
+            for (int i = 0; i < level; i++) {
+                if (i > 0) {
+                    RawImageFile.Header header = RawImageFile.readHeader(mIntermediate);
+                    RawImageFile.readPixels(mIntermediate, header, input);
+                }
+                GaussianBlur.blur(i == 0 ? mSrc : input, mDst, size, size, RADIUS);
+                RawImageFile.write(mIntermediate, mDst, size, size,
+                        RawImageFile.CONFIG_ARGB_8888);
+            }
+        } finally {
+            PixelBuffers.release(input);
+        }
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] fused() throws IOException {
+        GaussianBlur.blur(mSrc, mDst, size, size, GaussianBlur.equivalentRadius(RADIUS, level));
+        RawImageFile.write(mIntermediate, mDst, size, size, RawImageFile.CONFIG_ARGB_8888);
+        return mDst;
+    }
+}
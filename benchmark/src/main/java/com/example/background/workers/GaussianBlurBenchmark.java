@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Java blur kernel per image size and radius: on the calling thread, on the shared
+ * fork/join pool, and strip by strip as used for images that do not fit in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GaussianBlurBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    // 10 is WorkerUtils.BLUR_RADIUS; 14.5 and 18.4 are its fused equivalents for levels 2 and 3
+    @Param({"2.5", "10", "14.5", "18.4", "25"})
+    public float radius;
+
+    private int[] mSrc;
+    private int[] mDst;
+
+    @Setup
+    public void setUp() {
+        mSrc = SyntheticImages.photoLike(size, size);
+        mDst = new int[size * size];
+    }
+
+    @Benchmark
+    public int[] serial() {
+        GaussianBlur.blur(mSrc, mDst, size, size, radius, null);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] parallel() {
+        GaussianBlur.blur(mSrc, mDst, size, size, radius);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] strips() throws IOException {
+        StripBlur.blur(new StripBlur.Source() {
+            @Override
+            public void readRows(int top, int rows, int[] dst) {
+                System.arraycopy(mSrc, top * size, dst, 0, rows * size);
+            }
+        }, new StripBlur.Sink() {
+            int mRow;
+
+            @Override
+            public void writeRows(int[] pixels, int offset, int rows) {
+                System.arraycopy(pixels, offset, mDst, mRow * size, rows * size);
+                mRow += rows;
+            }
+        }, size, size, radius, 256);
+        return mDst;
+    }
+}
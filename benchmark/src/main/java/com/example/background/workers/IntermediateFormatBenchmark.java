@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Writing and reading the intermediate files passed between chain steps: the memory-mapped raw
+ * format, whole-image and row by row, against the streaming PNG writer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IntermediateFormatBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    private int[] mPixels;
+    private File mRawFile;
+    private File mPngFile;
+    private RawImageFile.Header mHeader;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPixels = SyntheticImages.photoLike(size, size);
+        mRawFile = File.createTempFile("intermediate", RawImageFile.EXTENSION);
+        mPngFile = File.createTempFile("intermediate", ".png");
+        RawImageFile.write(mRawFile, mPixels, size, size, RawImageFile.CONFIG_ARGB_8888);
+        mHeader = RawImageFile.readHeader(mRawFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRawFile.delete();
+        mPngFile.delete();
+    }
+
+    @Benchmark
+    public File writeRaw() throws IOException {
+        RawImageFile.write(mRawFile, mPixels, size, size, RawImageFile.CONFIG_ARGB_8888);
+        return mRawFile;
+    }
+
+    @Benchmark
+    public File writeRawRows() throws IOException {
+        RawImageFile.Writer writer =
+                new RawImageFile.Writer(mRawFile, size, size, RawImageFile.CONFIG_ARGB_8888);
+        try {
+            for (int top = 0; top < size; top += 256) {
+                int rows = Math.min(256, size - top);
+                writer.writeRows(mPixels, top * size, rows);
+            }
+        } finally {
+            writer.close();
+        }
+        return mRawFile;
+    }
+
+    @Benchmark
+    public int[] readRaw() throws IOException {
+        int[] dst = PixelBuffers.acquire(size * size);
+        RawImageFile.readPixels(mRawFile, mHeader, dst);
+        PixelBuffers.release(dst);
+        return dst;
+    }
+
+    @Benchmark
+    public File writePngFast() throws IOException {
+        return writePng(Deflater.BEST_SPEED);
+    }
+
+    @Benchmark
+    public File writePngDefault() throws IOException {
+        return writePng(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private File writePng(int level) throws IOException {
+        PngStreamWriter writer = new PngStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(mPngFile)), size, size, false, level);
+        try {
+            writer.writeRows(mPixels, 0, size);
+        } finally {
+            writer.close();
+        }
+        return mPngFile;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.background.workers;
+
+import java.util.Random;
+
+/**
+ * Deterministic test images for the benchmarks: a smooth gradient with a little noise on top,
+ * which compresses roughly like a photo rather than like flat colour or pure noise.
+ */
+final class SyntheticImages {
+
+    static int[] photoLike(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = clamp(255 * x / width + random.nextInt(17) - 8);
+                int g = clamp(255 * y / height + random.nextInt(17) - 8);
+                int b = clamp(255 * (x + y) / (width + height) + random.nextInt(17) - 8);
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private SyntheticImages() {
+    }
+}